@@ -1,13 +1,38 @@
 package com.hmdp.config;
 
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SeckillStockLedger;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+import org.springframework.amqp.rabbit.retry.RepublishMessageRecoverer;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class MqConfig {
 
+    public static final String SECKILL_EXCHANGE = "secKill.topic";
+    public static final String SECKILL_QUEUE = "secKill.success.queue";
+    public static final String SECKILL_ROUTING_KEY = "secKill.success";
+    public static final String SECKILL_DEAD_EXCHANGE = "secKill.dlx";
+    public static final String SECKILL_DEAD_QUEUE = "secKill.dead.queue";
+    public static final String SECKILL_DEAD_ROUTING_KEY = "secKill.dead";
+
     @Bean
     public MessageConverter messageConverter() {
         Jackson2JsonMessageConverter converter = new Jackson2JsonMessageConverter();
@@ -15,4 +40,69 @@ public class MqConfig {
         converter.setCreateMessageIds(true);
         return converter;
     }
+
+    @Bean
+    public DirectExchange seckillDeadExchange() {
+        return new DirectExchange(SECKILL_DEAD_EXCHANGE);
+    }
+
+    @Bean
+    public Queue seckillDeadQueue() {
+        return new Queue(SECKILL_DEAD_QUEUE);
+    }
+
+    @Bean
+    public Binding seckillDeadBinding() {
+        return BindingBuilder.bind(seckillDeadQueue()).to(seckillDeadExchange()).with(SECKILL_DEAD_ROUTING_KEY);
+    }
+
+    /**
+     * 消费者本地重试（spring.rabbitmq.listener.simple.retry）耗尽后，把消息连同异常信息转发到死信队列，
+     * 订单没有写入数据库，redis中扣减的库存同时归还
+     */
+    @Bean
+    public MessageRecoverer messageRecoverer(RabbitTemplate rabbitTemplate, MeterRegistry meterRegistry,
+                                             MessageConverter messageConverter, OrderStatusTracker orderStatusTracker,
+                                             SeckillStockLedger seckillStockLedger) {
+        Counter deadLettered = meterRegistry.counter("seckill.order.dead.lettered");
+        return new RepublishMessageRecoverer(rabbitTemplate, SECKILL_DEAD_EXCHANGE, SECKILL_DEAD_ROUTING_KEY) {
+            @Override
+            public void recover(Message message, Throwable cause) {
+                deadLettered.increment();
+                super.recover(message, cause);
+                Object body = messageConverter.fromMessage(message);
+                if (body instanceof VoucherOrder) {
+                    VoucherOrder voucherOrder = (VoucherOrder) body;
+                    orderStatusTracker.failed(voucherOrder.getId());
+                    seckillStockLedger.release(voucherOrder.getVoucherId(), voucherOrder.getUserId());
+                }
+            }
+        };
+    }
+
+    /**
+     * 批量消费秒杀订单的监听容器：攒够batch-size条或等待receive-timeout-ms后一次交给监听器，
+     * 监听器正常返回（事务已提交）后才ack整批消息
+     */
+    @Bean
+    @ConditionalOnProperty(name = "hmdp.seckill.order.batch.enabled", havingValue = "true")
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            ConnectionFactory connectionFactory,
+            @Value("${hmdp.seckill.order.batch.size:200}") int batchSize,
+            @Value("${hmdp.seckill.order.batch.receive-timeout-ms:100}") long receiveTimeout) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        // 批量监听器自行处理失败的批次（逐条按相同的退避策略重试），不使用按条重试的拦截器
+        factory.setAdviceChain();
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(receiveTimeout);
+        factory.setPrefetchCount(batchSize * 2);
+        // 单个消费者，批次之间串行，避免不同批次里同一用户的订单并发写入
+        factory.setConcurrentConsumers(1);
+        factory.setMaxConcurrentConsumers(1);
+        return factory;
+    }
 }
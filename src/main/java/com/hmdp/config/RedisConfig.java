@@ -0,0 +1,135 @@
+package com.hmdp.config;
+
+import io.lettuce.core.ReadFrom;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
+import org.springframework.data.redis.connection.RedisConfiguration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisPassword;
+import org.springframework.data.redis.connection.RedisSentinelConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import javax.annotation.PreDestroy;
+import java.util.HashSet;
+
+/**
+ * redis拓扑由spring.redis决定：配置了cluster.nodes为集群，配置了sentinel为哨兵（主从），否则为单机。
+ * 默认的StringRedisTemplate始终读写主节点；replica开头的两个模板按hmdp.redis.read-from优先读副本，
+ * 只用于能容忍复制延迟的读：缓存命中查询和点赞状态。单机部署时没有副本，直接使用默认连接。
+ */
+@Configuration
+public class RedisConfig {
+
+    // 副本读取策略，取值见io.lettuce.core.ReadFrom：replicaPreferred、replica、nearest、master等
+    @Value("${hmdp.redis.read-from:replicaPreferred}")
+    private String readFrom;
+
+    private LettuceConnectionFactory replicaConnectionFactory;
+
+    @PreDestroy
+    public void destroy() {
+        if (replicaConnectionFactory != null) {
+            replicaConnectionFactory.destroy();
+        }
+    }
+
+    /**
+     * 公共的redis pub/sub监听容器，各组件在初始化时自行注册频道
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory redisConnectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        return container;
+    }
+
+    /**
+     * value为原始字节的RedisTemplate，缓存数据由CacheSerializer负责编解码
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> byteRedisTemplate(RedisConnectionFactory redisConnectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(redisConnectionFactory);
+        template.setKeySerializer(StringRedisSerializer.UTF_8);
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashKeySerializer(StringRedisSerializer.UTF_8);
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    /**
+     * 优先读副本的byteRedisTemplate，只用于读取缓存
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> replicaByteRedisTemplate(RedisProperties redisProperties,
+                                                                  RedisConnectionFactory redisConnectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(replicaConnectionFactory(redisProperties, redisConnectionFactory));
+        template.setKeySerializer(StringRedisSerializer.UTF_8);
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashKeySerializer(StringRedisSerializer.UTF_8);
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    /**
+     * 优先读副本的字符串模板。返回类型不是StringRedisTemplate，避免替换掉自动配置的stringRedisTemplate
+     */
+    @Bean
+    public RedisTemplate<String, String> replicaStringRedisTemplate(RedisProperties redisProperties,
+                                                                    RedisConnectionFactory redisConnectionFactory) {
+        RedisTemplate<String, String> template = new RedisTemplate<>();
+        template.setConnectionFactory(replicaConnectionFactory(redisProperties, redisConnectionFactory));
+        template.setKeySerializer(StringRedisSerializer.UTF_8);
+        template.setValueSerializer(StringRedisSerializer.UTF_8);
+        template.setHashKeySerializer(StringRedisSerializer.UTF_8);
+        template.setHashValueSerializer(StringRedisSerializer.UTF_8);
+        return template;
+    }
+
+    /**
+     * 副本读取使用单独的连接工厂，不注册为bean，否则自动配置的主连接工厂不会创建
+     */
+    private synchronized RedisConnectionFactory replicaConnectionFactory(RedisProperties properties,
+                                                                        RedisConnectionFactory primary) {
+        if (replicaConnectionFactory != null) {
+            return replicaConnectionFactory;
+        }
+        RedisConfiguration configuration;
+        if (properties.getCluster() != null) {
+            RedisClusterConfiguration cluster = new RedisClusterConfiguration(properties.getCluster().getNodes());
+            if (properties.getCluster().getMaxRedirects() != null) {
+                cluster.setMaxRedirects(properties.getCluster().getMaxRedirects());
+            }
+            cluster.setPassword(RedisPassword.of(properties.getPassword()));
+            configuration = cluster;
+        } else if (properties.getSentinel() != null) {
+            RedisSentinelConfiguration sentinel = new RedisSentinelConfiguration(
+                    properties.getSentinel().getMaster(), new HashSet<>(properties.getSentinel().getNodes()));
+            sentinel.setPassword(RedisPassword.of(properties.getPassword()));
+            sentinel.setDatabase(properties.getDatabase());
+            configuration = sentinel;
+        } else {
+            return primary;
+        }
+        LettuceClientConfiguration.LettuceClientConfigurationBuilder builder = LettuceClientConfiguration.builder()
+                .readFrom(ReadFrom.valueOf(readFrom));
+        if (properties.getTimeout() != null) {
+            builder.commandTimeout(properties.getTimeout());
+        }
+        if (properties.isSsl()) {
+            builder.useSsl();
+        }
+        replicaConnectionFactory = new LettuceConnectionFactory(configuration, builder.build());
+        replicaConnectionFactory.afterPropertiesSet();
+        return replicaConnectionFactory;
+    }
+}
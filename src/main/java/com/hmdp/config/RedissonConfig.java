@@ -2,17 +2,47 @@ package com.hmdp.config;
 
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
+import org.redisson.config.ClusterServersConfig;
 import org.redisson.config.Config;
+import org.redisson.config.ReadMode;
+import org.redisson.config.SentinelServersConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+/**
+ * Redisson与StringRedisTemplate共用spring.redis的配置，拓扑的判断规则见RedisConfig
+ */
 @Configuration
 public class RedissonConfig {
 
+    // Redisson的读取模式：MASTER、SLAVE、MASTER_SLAVE，只在哨兵和集群模式下生效
+    @Value("${hmdp.redis.redisson.read-mode:MASTER}")
+    private ReadMode readMode;
+
     @Bean
-    public RedissonClient redissonClient() {
+    public RedissonClient redissonClient(RedisProperties redisProperties) {
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://192.168.174.100:6379").setPassword("123456");
+        String scheme = redisProperties.isSsl() ? "rediss://" : "redis://";
+        if (redisProperties.getCluster() != null) {
+            ClusterServersConfig cluster = config.useClusterServers()
+                    .setReadMode(readMode)
+                    .setPassword(redisProperties.getPassword());
+            redisProperties.getCluster().getNodes().forEach(node -> cluster.addNodeAddress(scheme + node));
+        } else if (redisProperties.getSentinel() != null) {
+            SentinelServersConfig sentinel = config.useSentinelServers()
+                    .setMasterName(redisProperties.getSentinel().getMaster())
+                    .setReadMode(readMode)
+                    .setPassword(redisProperties.getPassword())
+                    .setDatabase(redisProperties.getDatabase());
+            redisProperties.getSentinel().getNodes().forEach(node -> sentinel.addSentinelAddress(scheme + node));
+        } else {
+            config.useSingleServer()
+                    .setAddress(scheme + redisProperties.getHost() + ":" + redisProperties.getPort())
+                    .setPassword(redisProperties.getPassword())
+                    .setDatabase(redisProperties.getDatabase());
+        }
         return Redisson.create(config);
     }
 }
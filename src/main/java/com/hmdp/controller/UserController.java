@@ -10,6 +10,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -21,6 +22,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import java.util.List;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
 import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
 
 /**
@@ -45,6 +47,9 @@ public class UserController {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
     /**
      * 发送手机验证码
      */
@@ -113,8 +118,8 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId){
-        // 查询详情
-        User user = userService.getById(userId);
+        // 查询详情，布隆过滤器判定不存在的用户不查数据库，和查不到的用户返回相同的结果
+        User user = bloomFilterManager.mightContain(CACHE_USER_KEY, userId) ? userService.getById(userId) : null;
         if (user == null) {
             return Result.ok();
         }
@@ -1,14 +1,26 @@
 package com.hmdp.controller;
 
 
+import com.hmdp.dto.OrderStatus;
 import com.hmdp.dto.Result;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
 
 /**
  * <p>
@@ -18,15 +30,90 @@ import org.springframework.web.bind.annotation.RestController;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @RestController
 @RequestMapping("/voucher-order")
 public class VoucherOrderController {
 
     @Autowired
     private ISeckillVoucherService iSeckillVoucherService;
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+    @Autowired
+    private OrderStatusTracker orderStatusTracker;
+
+    @Value("${hmdp.seckill.order.status-timeout-ms:30000}")
+    private long statusTimeout;
 
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return iSeckillVoucherService.secKillByVoucherId(voucherId);
     }
+
+    /**
+     * 取消未支付的秒杀订单，归还库存
+     * @param orderId 订单id
+     */
+    @PutMapping("{id}/cancel")
+    public Result cancelOrder(@PathVariable("id") Long orderId) {
+        return voucherOrderService.cancelVoucherOrder(orderId, UserHolder.getUser().getId());
+    }
+
+    /**
+     * 查询当前用户秒杀订单的处理状态
+     * @param orderId 订单id
+     * @param wait 为true时长轮询，订单处理完成或超时后才返回
+     * @return 订单状态：QUEUED/PERSISTED/FAILED
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "wait", defaultValue = "false") Boolean wait) {
+        OrderStatus status = orderStatusTracker.get(orderId, UserHolder.getUser().getId());
+        DeferredResult<Result> result = new DeferredResult<>(statusTimeout);
+        if (status == null) {
+            result.setResult(Result.fail("订单不存在！"));
+            return result;
+        }
+        if (!wait || status.isFinished()) {
+            result.setResult(Result.ok(status));
+            return result;
+        }
+        Runnable cancel = orderStatusTracker.await(orderId, s -> result.setResult(Result.ok(s)));
+        // 超时返回当前状态，客户端可以继续等待
+        result.onTimeout(() -> result.setResult(Result.ok(OrderStatus.QUEUED)));
+        result.onCompletion(cancel);
+        return result;
+    }
+
+    /**
+     * 通过SSE推送当前用户秒杀订单的处理结果
+     * @param orderId 订单id
+     * @return 先推送当前状态，处理完成后推送最终状态并关闭连接
+     */
+    @GetMapping("{id}/status/stream")
+    public SseEmitter streamOrderStatus(@PathVariable("id") Long orderId) {
+        SseEmitter emitter = new SseEmitter(statusTimeout);
+        OrderStatus status = orderStatusTracker.get(orderId, UserHolder.getUser().getId());
+        if (status == null || status.isFinished()) {
+            send(emitter, status);
+            emitter.complete();
+            return emitter;
+        }
+        send(emitter, status);
+        Runnable cancel = orderStatusTracker.await(orderId, s -> {
+            send(emitter, s);
+            emitter.complete();
+        });
+        emitter.onTimeout(emitter::complete);
+        emitter.onCompletion(cancel);
+        return emitter;
+    }
+
+    private void send(SseEmitter emitter, OrderStatus status) {
+        try {
+            emitter.send(status == null ? Result.fail("订单不存在！") : Result.ok(status));
+        } catch (IOException | IllegalStateException e) {
+            log.debug("推送订单状态失败", e);
+        }
+    }
 }
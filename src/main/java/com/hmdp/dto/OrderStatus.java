@@ -0,0 +1,40 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 秒杀订单的异步处理状态，redis中只保存一个字符的code
+ */
+@Getter
+@AllArgsConstructor
+public enum OrderStatus {
+
+    /**
+     * 已获得秒杀资格，等待写入数据库
+     */
+    QUEUED("Q"),
+    /**
+     * 已写入数据库
+     */
+    PERSISTED("P"),
+    /**
+     * 写入失败（库存不足、重复下单或进入死信队列）
+     */
+    FAILED("F");
+
+    private final String code;
+
+    public boolean isFinished() {
+        return this != QUEUED;
+    }
+
+    public static OrderStatus of(String code) {
+        for (OrderStatus status : values()) {
+            if (status.code.equals(code)) {
+                return status;
+            }
+        }
+        return null;
+    }
+}
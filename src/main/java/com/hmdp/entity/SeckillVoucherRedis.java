@@ -25,4 +25,19 @@ public class SeckillVoucherRedis {
      */
     private LocalDateTime endTime;
 
+    /**
+     * 生效时间的毫秒时间戳，供secKill.lua直接比较
+     */
+    private Long beginMillis;
+
+    /**
+     * 失效时间的毫秒时间戳
+     */
+    private Long endMillis;
+
+    /**
+     * 库存分段数，为空表示未分段，库存就在stock字段
+     */
+    private Integer segments;
+
 }
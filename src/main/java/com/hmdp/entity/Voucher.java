@@ -90,6 +90,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 秒杀库存分段数，大于1时库存拆分到多个redis分段
+     */
+    @TableField(exist = false)
+    private Integer stockSegments;
+
     /**
      * 创建时间
      */
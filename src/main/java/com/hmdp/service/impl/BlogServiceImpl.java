@@ -15,8 +15,12 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheUtil;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
@@ -25,14 +29,21 @@ import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.HOT_LIKED_REPLICA_MAX_SIZE;
 
 /**
  * <p>
@@ -52,9 +63,21 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    // 点赞状态优先从副本读取，刚点完赞的短时间内可能读到旧状态
+    @Resource
+    private RedisTemplate<String, String> replicaStringRedisTemplate;
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+    @Resource
+    private CacheUtil cacheUtil;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
 
     @Override
     public Result queryBlogById(Long id) {
+        if (!bloomFilterManager.mightContain(CACHE_BLOG_KEY, id)) {
+            return Result.fail("笔记不存在");
+        }
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("笔记不存在");
@@ -81,11 +104,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             boolean success = update().setSql("liked = liked + 1").eq("id", id).update();
             if (success) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheUtil.invalidateLocal(key);
             }
         } else {
             boolean success = update().setSql("liked = liked - 1").eq("id", id).update();
             if (success) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheUtil.invalidateLocal(key);
             }
         }
         return Result.ok();
@@ -99,11 +124,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            updateBlogByUserInfo(blog);
-            isBlogLiked(blog);
-        });
+        // 批量查询用户
+        updateBlogsByUserInfo(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
@@ -161,8 +184,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         List<Blog> blogs = query()
                 .in("id", blogIds)
                 .last("ORDER BY FIELD(id," + idStr + ")").list();
+        updateBlogsByUserInfo(blogs);
         for (Blog blog : blogs) {
-            updateBlogByUserInfo(blog);
             isBlogLiked(blog);
         }
         ScrollResult scrollResult = new ScrollResult();
@@ -182,6 +205,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!saved) {
             return Result.fail("上传博文失败！");
         }
+        bloomFilterManager.put(CACHE_BLOG_KEY, blog.getId());
         //feed博文id到所有粉丝
         List<Follow> followUsers = followService.query().eq("follow_user_id", user.getId()).list();
         for (Follow follow : followUsers) {
@@ -194,10 +218,31 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     private void updateBlogByUserInfo(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setIcon(user.getIcon());
-        blog.setName(user.getNickName());
+        updateBlogsByUserInfo(Collections.singletonList(blog));
+    }
+
+    /**
+     * 批量填充博客作者信息：一次MGET查缓存，未命中的用户一次IN查询数据库
+     */
+    private void updateBlogsByUserInfo(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = cacheUtil.getObjects(CACHE_USER_KEY, userIds, UserDTO.class,
+                this::queryUserDTOs, CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setIcon(user.getIcon());
+                blog.setName(user.getNickName());
+            }
+        }
+    }
+
+    private Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        return userService.listByIds(ids).stream()
+                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class)));
     }
 
     private void isBlogLiked(Blog blog) {
@@ -206,7 +251,36 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return;
         }
         Long userId = user.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(BLOG_LIKED_KEY + blog.getId(), userId.toString());
+        String key = BLOG_LIKED_KEY + blog.getId();
+        // 热点博客的点赞集合在本地保存一份副本，避免所有人的ZSCORE都打到同一个key上
+        if (hotKeyDetector.record(key)) {
+            Set<String> likedUsers = queryHotLikedUsers(key);
+            if (likedUsers != null) {
+                blog.setIsLike(likedUsers.contains(userId.toString()));
+                return;
+            }
+        }
+        Double score = replicaStringRedisTemplate.opsForZSet().score(key, userId.toString());
         blog.setIsLike(score != null);
     }
+
+    /**
+     * 读取热点博客点赞用户集合的本地副本，集合过大时不复制，返回null
+     */
+    @SuppressWarnings("unchecked")
+    private Set<String> queryHotLikedUsers(String key) {
+        Set<String> likedUsers = (Set<String>) hotKeyDetector.getReplica(key);
+        if (likedUsers != null) {
+            return likedUsers;
+        }
+        // 结果会保存为本地副本，读主节点，避免把副本上延迟的旧集合保存下来
+        Long size = stringRedisTemplate.opsForZSet().zCard(key);
+        if (size == null || size > HOT_LIKED_REPLICA_MAX_SIZE) {
+            return null;
+        }
+        Set<String> members = stringRedisTemplate.opsForZSet().range(key, 0, -1);
+        likedUsers = members == null ? Collections.emptySet() : new HashSet<>(members);
+        hotKeyDetector.putReplica(key, likedUsers);
+        return likedUsers;
+    }
 }
@@ -1,31 +1,39 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
-import com.hmdp.entity.SeckillVoucherRedis;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.OrderStatusTracker;
 import com.hmdp.utils.RedisIDGenerator;
+import com.hmdp.utils.SeckillAdmissionControl;
+import com.hmdp.utils.SeckillOrderPublisher;
+import com.hmdp.utils.SeckillOrderStreams;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockLedger;
+import com.hmdp.utils.SeckillStockSegments;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.Collections;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_MAP_KEY;
-
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -44,7 +52,23 @@ public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper,
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RabbitTemplate rabbitTemplate;
+    private SeckillOrderPublisher seckillOrderPublisher;
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+    @Resource
+    private SeckillAdmissionControl seckillAdmissionControl;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillStockSegments seckillStockSegments;
+    @Resource
+    private SeckillOrderStreams seckillOrderStreams;
+    @Resource
+    private SeckillStockLedger seckillStockLedger;
+
+    // 订单投递方式：rabbit 或 stream
+    @Value("${hmdp.seckill.order.transport:rabbit}")
+    private String orderTransport;
 
     private static DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
@@ -54,44 +78,127 @@ public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper,
     }
 
     /**
-     * 基于redis+消息队列实现异步秒杀
+     * 启动时把秒杀脚本加载到redis，execute通过EVALSHA调用，避免首次请求遇到NOSCRIPT再回退到EVAL。
+     * 订单id在执行脚本之前生成，被拒绝的请求也会用掉一个id，所以要求订单id在进程内发放，
+     * incr模式下每个请求都会多一次redis往返，启动时直接失败
+     */
+    @PostConstruct
+    public void loadScript() {
+        if (!redisIDGenerator.isLocal("order")) {
+            throw new IllegalStateException("秒杀订单id需要在进程内发放：把order加入hmdp.id.snowflake.prefixes，或者设置hmdp.id.mode=segment");
+        }
+        String sha = stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptingCommands()
+                .scriptLoad(SECKILL_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+        log.info("秒杀脚本已加载，sha1：{}", sha);
+    }
+
+    /**
+     * 基于redis+消息队列实现异步秒杀，时间窗口、库存和一人一单的校验都在secKill.lua中一次完成
      * @param voucherId
      * @return
      */
     @Override
     public Result secKillByVoucherId(Long voucherId) {
-        Map<Object, Object> seckillMap = stringRedisTemplate.opsForHash().entries(SECKILL_MAP_KEY + voucherId);
-        SeckillVoucherRedis svr = BeanUtil.mapToBean(seckillMap, SeckillVoucherRedis.class, false);
-        if (svr.getBeginTime().isAfter(LocalDateTime.now())) {
-            return Result.fail("秒杀尚未开始！");
-        }
-        if (svr.getEndTime().isBefore(LocalDateTime.now())) {
-            return Result.fail("秒杀已经结束！");
+        // 已售罄的券直接返回，不访问redis
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足！");
         }
         Long userId = UserHolder.getUser().getId();
-        Long res = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString()
-        );
-        assert res != null;
-        int i = res.intValue();
-        if (i != 0) return Result.fail(i == 1 ? "库存不足！" : "一人只能下一单");
+        // 准入控制，本地令牌耗尽时直接拒绝，不访问redis
+        SeckillAdmissionControl.Decision decision = seckillAdmissionControl.tryAdmit(userId, voucherId);
+        if (decision == SeckillAdmissionControl.Decision.USER_LIMITED) {
+            return Result.fail("请求过于频繁，请稍后再试！");
+        }
+        if (decision == SeckillAdmissionControl.Decision.BUSY) {
+            return Result.fail("活动太火爆，请稍后再试！");
+        }
+        boolean useStream = "stream".equals(orderTransport);
+        // broker长时间不可用，本地重发缓冲区已满，不再扣减库存
+        if (!useStream && seckillOrderPublisher.isFull()) {
+            return Result.fail("活动太火爆，请稍后再试！");
+        }
+        int segments = seckillStockSegments.segmentsOf(voucherId);
+        // 订单id在秒杀脚本中和下单记录一起保存，需要提前生成；雪花id或号段在进程内发放，不增加redis往返
+        Long orderId = redisIDGenerator.nextId("order");
+        // 超热门的券库存拆分成多个分段，否则整张券的库存在一个key上；使用stream投递时订单在脚本中XADD
+        int i = segments > 1 ? seckillStockSegments.seckill(voucherId, userId, orderId, segments, useStream)
+                : executeSeckill(voucherId, userId, orderId, useStream);
+        if (i == 6 && backfillTimeWindow(voucherId)) {
+            i = executeSeckill(voucherId, userId, orderId, useStream);
+        }
+        if (i == 8) {
+            // 本地缓存的分段数已经过时（券在缓存之后才创建为分段券），重新读取后按分段秒杀
+            segments = seckillStockSegments.reloadSegments(voucherId);
+            i = segments > 1 ? seckillStockSegments.seckill(voucherId, userId, orderId, segments, useStream) : 5;
+        }
+        switch (i) {
+            case 0:
+                break;
+            case 1:
+                seckillSoldOutRegistry.markSoldOut(voucherId);
+                return Result.fail("库存不足！");
+            case 2:
+                return Result.fail("一人只能下一单");
+            case 3:
+                return Result.fail("秒杀尚未开始！");
+            case 4:
+                return Result.fail("秒杀已经结束！");
+            default:
+                return Result.fail("秒杀券不存在！");
+        }
         //走到这里代表有秒杀资格
-        long orderId = redisIDGenerator.nextId("order");
+        if (useStream) {
+            //订单已经在秒杀脚本中写入券（分段）自己的stream，登记后由VoucherOrderStreamConsumer消费
+            orderStatusTracker.queued(orderId, userId);
+            seckillOrderStreams.register(segments > 1
+                    ? SeckillStockSegments.streamKey(voucherId, SeckillStockSegments.homeSegment(userId, segments))
+                    : SeckillStockSegments.streamKey(voucherId));
+            return Result.ok(orderId);
+        }
+        //先记录状态再投递，避免消费完成的状态被覆盖
+        orderStatusTracker.queued(orderId, userId);
         //生成优惠券订单
         VoucherOrder voucherOrder = new VoucherOrder();
         voucherOrder.setId(orderId);
         voucherOrder.setVoucherId(voucherId);
         voucherOrder.setUserId(userId);
-        //将订单发布到消息队列中，VoucherOrderListener中实现监听
-        try {
-            rabbitTemplate.convertAndSend("secKill.topic", "secKill.success", voucherOrder);
-        } catch (Exception e) {
-            log.error("秒杀成功的消息发送失败，支付单id：{}， 优惠券id：{}", orderId, voucherId, e);
+        //将订单发布到消息队列中，VoucherOrderListener中实现监听，发送失败或未确认的消息会自动重发
+        if (!seckillOrderPublisher.publish(voucherOrder)) {
+            //重发缓冲区已满，归还库存和下单资格
+            orderStatusTracker.failed(orderId);
+            seckillStockLedger.release(voucherId, userId);
+            return Result.fail("活动太火爆，请稍后再试！");
         }
         //直接返回前端
         return Result.ok(orderId);
     }
+
+    private int executeSeckill(Long voucherId, Long userId, Long orderId, boolean useStream) {
+        List<String> keys = new ArrayList<>(4);
+        keys.add(SeckillStockSegments.mapKey(voucherId));
+        keys.add(SeckillStockSegments.orderKey(voucherId));
+        keys.add(SeckillStockSegments.orderIdKey(voucherId));
+        if (useStream) {
+            keys.add(SeckillStockSegments.streamKey(voucherId));
+        }
+        Long res = stringRedisTemplate.execute(SECKILL_SCRIPT, keys,
+                voucherId.toString(), userId.toString(), String.valueOf(System.currentTimeMillis()), orderId.toString());
+        assert res != null;
+        return res.intValue();
+    }
+
+    /**
+     * 旧版本写入的秒杀券只有beginTime/endTime，从数据库补齐毫秒时间戳字段，库存不动
+     */
+    private boolean backfillTimeWindow(Long voucherId) {
+        SeckillVoucher seckillVoucher = getById(voucherId);
+        if (seckillVoucher == null) {
+            return false;
+        }
+        Map<String, String> window = new HashMap<>();
+        window.put("beginMillis", String.valueOf(CacheSerializer.toEpochMilli(seckillVoucher.getBeginTime())));
+        window.put("endMillis", String.valueOf(CacheSerializer.toEpochMilli(seckillVoucher.getEndTime())));
+        stringRedisTemplate.opsForHash().putAll(SeckillStockSegments.mapKey(voucherId), window);
+        return true;
+    }
 }
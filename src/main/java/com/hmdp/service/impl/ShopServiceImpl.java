@@ -1,32 +1,21 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.RedisData;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheOutboxRelay;
 import com.hmdp.utils.CacheUtil;
-import com.hmdp.utils.RedisConstants;
-import io.netty.util.internal.StringUtil;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.SmileCacheCodec;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.LockSupport;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -41,72 +30,44 @@ import static com.hmdp.utils.RedisConstants.*;
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheUtil cacheUtil;
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+    @Resource
+    private CacheWarmer cacheWarmer;
+    @Resource
+    private CacheOutboxRelay cacheOutboxRelay;
+
+    @PostConstruct
+    public void init() {
+        cacheUtil.enableLocalCache(CACHE_SHOP_KEY, CACHE_SHOP_LOCAL_SIZE, CACHE_SHOP_LOCAL_TTL, TimeUnit.SECONDS);
+        cacheUtil.useCodec(CACHE_SHOP_KEY, SmileCacheCodec.NAME);
+        cacheUtil.registerExpireTier(CACHE_SHOP_KEY, CACHE_SHOP_TTL, CACHE_SHOP_MAX_TTL, TimeUnit.MINUTES);
+        cacheWarmer.registerRefresh(CACHE_SHOP_KEY, id -> getById(Long.valueOf(id)), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
 
     @Override
     public Result queryById(Long id) {
 
-        Shop shop = cacheUtil.getObject(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 热门店铺已在启动时预热并由CacheWarmer提前刷新，这里按逻辑过期读取
+        Shop shop = cacheUtil.queryWithLogicExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         if (shop == null) {
             return Result.fail("店铺不存在！");
         }
         return Result.ok(shop);
     }
 
-//    /**
-//     * 基于互斥锁根据店铺id查询店铺
-//     * @param id
-//     * @return
-//     */
-//    private Shop queryWithMutex(Long id) {
-//        String key = CACHE_SHOP_KEY + id;
-//
-//        String shopJson = stringRedisTemplate.opsForValue().get(key);
-//
-//        if (StrUtil.isNotBlank(shopJson)) {
-//            return JSONUtil.toBean(shopJson, Shop.class);
-//        }
-//
-//        if (shopJson != null) {
-//            return null;
-//        }
-//        //实现缓存重建
-//        String lockKey = "lock:shop:" + id;
-//        Shop shop;
-//
-//        try {
-//            boolean lock = tryLock(lockKey);
-//
-//            if (!lock) { //获取锁失败，休眠并重试
-//                Thread.sleep(50);
-//                return queryWithMutex(id);
-//            }
-//            //成功获取锁,double check检查redis
-//            String shopJson2 = stringRedisTemplate.opsForValue().get(key);
-//            if (StrUtil.isNotBlank(shopJson2)) {
-//                return JSONUtil.toBean(shopJson2, Shop.class);
-//            }
-//
-//            shop = getById(id);
-//            if (shop == null) {
-//                stringRedisTemplate.opsForValue().set(key, "", CACHE_SHOP_TTL, TimeUnit.MINUTES);
-//                return null;
-//            }
-//            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-//
-//        } catch (InterruptedException e) {
-//            throw new RuntimeException(e);
-//        } finally {
-//            unlock(lockKey);
-//        }
-//        return shop;
-//    }
-
-
-
+    @Override
+    @Transactional
+    public Result saveShop(Shop shop) {
+        save(shop);
+        // 新店铺id写入布隆过滤器，否则会被当作不存在的id拦截
+        bloomFilterManager.put(CACHE_SHOP_KEY, shop.getId());
+        // 触发器已写入发件箱，提交后清除之前缓存的空对象
+        cacheOutboxRelay.relayAfterCommit();
+        return Result.ok(shop.getId());
+    }
 
     @Override
     @Transactional
@@ -119,23 +80,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 1、更新数据库
         updateById(shop);
 
-        // 2、删除缓存
-
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
-        ReentrantLock lock = new ReentrantLock();
-        lock.lock();
-        CountDownLatch countDownLatch = new CountDownLatch(1);
-        ConcurrentHashMap map = new ConcurrentHashMap();
-        CyclicBarrier cyclicBarrier = new CyclicBarrier(2);
-        map.put(1,1);
-        AtomicInteger atomicInteger = new AtomicInteger(0);
-        ArrayBlockingQueue arrayBlockingQueue = new ArrayBlockingQueue(10);
-        Deque queue = new ArrayDeque();
-        LockSupport.park();
+        // 2、触发器在同一事务内写入了缓存失效发件箱，提交后再删除缓存并通知所有节点清除本地缓存
+        cacheOutboxRelay.relayAfterCommit();
         return Result.ok();
     }
-
-
-
-
 }
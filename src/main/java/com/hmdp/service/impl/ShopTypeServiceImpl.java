@@ -6,6 +6,7 @@ import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheUtil;
 import com.hmdp.utils.RedisConstants;
 import lombok.experimental.Accessors;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,23 +28,10 @@ import java.util.List;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheUtil cacheUtil;
 
     @Override
     public List<ShopType> queryList() {
-
-        String key = RedisConstants.CACHE_SHOP_TYPE;
-        String jsonStr = stringRedisTemplate.opsForValue().get(key);
-
-        if (StrUtil.isNotBlank(jsonStr)) {
-            return JSONUtil.toList(jsonStr, ShopType.class);
-        }
-
-        List<ShopType> list = query().list();
-
-        if (list != null && list.size() > 0) {
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(list));
-        }
-        return list;
+        return cacheUtil.getList(RedisConstants.CACHE_SHOP_TYPE, ShopType.class, () -> query().list());
     }
 }
@@ -11,6 +11,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SmsUtil;
 import lombok.extern.slf4j.Slf4j;
@@ -43,6 +44,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private SmsUtil smsUtil;
+    @Resource
+    private BloomFilterManager bloomFilterManager;
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -116,6 +119,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
                 .setPhone(phone)
                 .setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         save(user);
+        bloomFilterManager.put(CACHE_USER_KEY, user.getId());
         return user;
     }
 }
@@ -1,15 +1,32 @@
 package com.hmdp.service.impl;
 
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.Result;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SeckillStockLedger;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_CANCELLED;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_UNPAID;
 
 
 /**
@@ -26,24 +43,158 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Resource
     private ISeckillVoucherService iSeckillVoucherService;
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+    @Resource
+    private SeckillStockLedger seckillStockLedger;
 
+    /**
+     * 重复下单和库存不足的订单不再保存，库存不足时把redis中的库存归还
+     */
+    @Override
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        if (count > 0) {
-            log.error("不能重复下单");
+        createVoucherOrders(Collections.singletonList(voucherOrder));
+    }
+
+    /**
+     * 批量创建订单：按(userId, voucherId)去重，每张券只扣减一次库存，订单用一条多行insert保存
+     * @param voucherOrders 一批秒杀成功的订单
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        // 1、批次内去重，重复投递的消息只保留第一条
+        Map<String, VoucherOrder> distinct = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            distinct.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+        // 2、去掉数据库中已经存在的订单，已取消的订单不占用下单资格，但重复投递的同一条订单仍然跳过
+        Set<Long> userIds = distinct.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = distinct.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existing = query()
+                .select("id", "user_id", "voucher_id", "status")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list();
+        Set<String> persistedKeys = new HashSet<>();
+        for (VoucherOrder order : existing) {
+            String key = order.getUserId() + ":" + order.getVoucherId();
+            VoucherOrder pending = distinct.get(key);
+            boolean redelivered = pending != null && pending.getId().equals(order.getId());
+            if (!redelivered && order.getStatus() == VOUCHER_ORDER_CANCELLED) {
+                continue;
+            }
+            persistedKeys.add(key);
+            if (distinct.remove(key) != null && !redelivered) {
+                log.error("不能重复下单，用户ID：{}，优惠券ID：{}", order.getUserId(), order.getVoucherId());
+            }
+        }
+        // 3、按券聚合扣减库存
+        Map<Long, List<VoucherOrder>> byVoucher = distinct.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> toSave = new ArrayList<>(distinct.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            toSave.addAll(deductStock(entry.getKey(), entry.getValue()));
+        }
+        // 4、多行insert。第2步的查询挡不住并发事务同时写入同一用户的订单，由唯一索引uk_user_voucher_active兜底：
+        // 冲突时抛出DuplicateKeyException整批回滚，消费者逐条重试时第2步就能查到已提交的订单并跳过
+        if (!toSave.isEmpty()) {
+            getBaseMapper().insertBatch(toSave);
+        }
+        // 5、事务提交后更新订单状态，重复投递的订单本身已经存在，同样算写入成功
+        Set<Long> persisted = toSave.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        existing.forEach(order -> persisted.add(order.getId()));
+        Set<Long> failed = voucherOrders.stream().map(VoucherOrder::getId)
+                .filter(id -> !persisted.contains(id))
+                .collect(Collectors.toSet());
+        persisted.retainAll(voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toSet()));
+        // 数据库库存不足没有保存的订单，redis中已经扣过库存，需要归还；
+        // 同一用户的其他订单已经保存时不能归还，否则会释放他的下单资格
+        toSave.forEach(o -> persistedKeys.add(o.getUserId() + ":" + o.getVoucherId()));
+        Map<String, VoucherOrder> rejected = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            String key = voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId();
+            if (!persistedKeys.contains(key)) {
+                rejected.putIfAbsent(key, voucherOrder);
+            }
+        }
+        afterCommit(() -> {
+            orderStatusTracker.persisted(persisted);
+            orderStatusTracker.failed(failed);
+            rejected.values().forEach(o -> seckillStockLedger.release(o.getVoucherId(), o.getUserId()));
+        });
+    }
+
+    /**
+     * 取消未支付的订单，数据库和redis中的库存都归还
+     * @param orderId 订单id
+     * @param userId 当前用户，只能取消自己的订单
+     */
+    @Override
+    @Transactional
+    public Result cancelVoucherOrder(Long orderId, Long userId) {
+        VoucherOrder voucherOrder = getById(orderId);
+        if (voucherOrder == null || !voucherOrder.getUserId().equals(userId)) {
+            return Result.fail("订单不存在！");
+        }
+        // 状态从未支付变为已取消只会成功一次，库存不会重复归还
+        boolean cancelled = update()
+                .set("status", VOUCHER_ORDER_CANCELLED)
+                .eq("id", orderId)
+                .eq("status", VOUCHER_ORDER_UNPAID)
+                .update();
+        if (!cancelled) {
+            return Result.fail("订单当前状态不能取消！");
         }
-        //扣减库存
+        iSeckillVoucherService.update()
+                .setSql("stock = stock + 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .update();
+        afterCommit(() -> seckillStockLedger.release(voucherOrder.getVoucherId(), userId));
+        return Result.ok();
+    }
+
+    private void afterCommit(Runnable runnable) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            runnable.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                runnable.run();
+            }
+        });
+    }
+
+    /**
+     * 一次扣减k个库存，库存不足时按剩余库存保留前面的订单
+     */
+    private List<VoucherOrder> deductStock(Long voucherId, List<VoucherOrder> orders) {
+        int k = orders.size();
         boolean success = iSeckillVoucherService.update()
-                .setSql("stock = stock - 1")
+                .setSql("stock = stock - " + k)
                 .eq("voucher_id", voucherId)
-                .gt("stock", 0)
+                .ge("stock", k)
                 .update();
-        if (!success) {
-            log.error("库存不足");
+        if (success) {
+            return orders;
         }
-        save(voucherOrder);
+        SeckillVoucher seckillVoucher = iSeckillVoucherService.getById(voucherId);
+        int stock = seckillVoucher == null ? 0 : Math.max(0, seckillVoucher.getStock());
+        log.error("库存不足，优惠券ID：{}，需要：{}，剩余：{}", voucherId, k, stock);
+        if (stock == 0) {
+            return new ArrayList<>();
+        }
+        boolean partial = iSeckillVoucherService.update()
+                .setSql("stock = stock - " + stock)
+                .eq("voucher_id", voucherId)
+                .ge("stock", stock)
+                .update();
+        return partial ? orders.subList(0, stock) : new ArrayList<>();
     }
 }
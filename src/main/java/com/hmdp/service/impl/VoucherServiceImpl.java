@@ -10,17 +10,20 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockSegments;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_MAP_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -36,6 +39,10 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillStockSegments seckillStockSegments;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -57,14 +64,67 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        long beginMillis = CacheSerializer.toEpochMilli(voucher.getBeginTime());
+        long endMillis = CacheSerializer.toEpochMilli(voucher.getEndTime());
+        int segments = seckillStockSegments.normalize(voucher.getStockSegments(), voucher.getStock());
         SeckillVoucherRedis svr = SeckillVoucherRedis.builder()
-                .stock(voucher.getStock())
+                // 分段模式下库存只保存在各个分段中
+                .stock(segments > 1 ? null : voucher.getStock())
+                .segments(segments > 1 ? segments : null)
                 .beginTime(voucher.getBeginTime())
-                .endTime(voucher.getEndTime()).build();
+                .endTime(voucher.getEndTime())
+                .beginMillis(beginMillis)
+                .endMillis(endMillis).build();
         Map<String, Object> svrMap = BeanUtil.beanToMap(svr, new HashMap<>(),
                 CopyOptions.create()
                         .setIgnoreNullValue(true)
-                        .setFieldValueEditor((fieldName, filedValue) -> filedValue.toString()));
-        stringRedisTemplate.opsForHash().putAll(SECKILL_MAP_KEY + voucher.getId(), svrMap);
+                        .setFieldValueEditor((fieldName, filedValue) -> filedValue == null ? null : filedValue.toString()));
+        // 事务提交后再写入redis，回滚时redis中不会出现数据库里没有的秒杀券
+        afterCommit(() -> {
+            if (segments > 1) {
+                seckillStockSegments.init(voucher.getId(), voucher.getStock(), segments, beginMillis, endMillis);
+            }
+            stringRedisTemplate.opsForHash().putAll(SeckillStockSegments.mapKey(voucher.getId()), svrMap);
+        });
+    }
+
+    @Override
+    @Transactional
+    public Result replenishSeckillStock(Long voucherId, Integer amount) {
+        if (amount == null || amount <= 0) {
+            return Result.fail("补充数量必须大于0！");
+        }
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + amount)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在！");
+        }
+        // 事务提交后再补充redis库存，回滚时redis不会多出数据库中没有的库存
+        afterCommit(() -> {
+            int segments = seckillStockSegments.segmentsOf(voucherId);
+            if (segments > 1) {
+                seckillStockSegments.replenish(voucherId, amount, segments);
+            } else {
+                stringRedisTemplate.opsForHash().increment(SeckillStockSegments.mapKey(voucherId), "stock", amount);
+            }
+            // 清除所有节点的售罄标记
+            seckillSoldOutRegistry.clear(voucherId);
+        });
+        return Result.ok();
+    }
+
+    private void afterCommit(Runnable runnable) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            runnable.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                runnable.run();
+            }
+        });
     }
 }
@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.AllArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 过期策略：
+ * 1. 分级：按key前缀配置基础TTL和最大TTL，覆盖调用方传入的TTL；
+ * 2. 自适应：距离上次更新足够久、并且两次写缓存之间读取次数多的key，TTL按读取次数的对数延长，最多到最大TTL；
+ * 3. 随机抖动：最终TTL在[1 - ratio, 1 + ratio]范围内随机浮动，避免同一批写入的key同时过期造成雪崩。
+ */
+@Component
+public class AdaptiveExpirePolicy implements ExpirePolicy {
+
+    @Value("${hmdp.cache.expire.jitter-ratio:0.1}")
+    private double jitterRatio;
+    // 自适应延长的最大倍数，1表示最多延长到2倍
+    @Value("${hmdp.cache.expire.max-boost:1.0}")
+    private double maxBoost;
+    // 最近更新过的key在这段时间内不延长TTL
+    @Value("${hmdp.cache.expire.stable-seconds:600}")
+    private long stableSeconds;
+    @Value("${hmdp.cache.expire.tracked-keys:100000}")
+    private long trackedKeys;
+
+    private final Map<String, Tier> tiers = new ConcurrentHashMap<>();
+    private Cache<String, LongAdder> readCounts;
+    private Cache<String, Long> recentUpdates;
+
+    @AllArgsConstructor
+    private static class Tier {
+        private final long baseTtlMillis;
+        private final long maxTtlMillis;
+    }
+
+    @PostConstruct
+    public void init() {
+        readCounts = Caffeine.newBuilder().maximumSize(trackedKeys).expireAfterAccess(1, TimeUnit.HOURS).build();
+        recentUpdates = Caffeine.newBuilder().maximumSize(trackedKeys).expireAfterWrite(stableSeconds, TimeUnit.SECONDS).build();
+    }
+
+    @Override
+    public void registerTier(String keyPrefix, long baseTtl, long maxTtl, TimeUnit timeUnit) {
+        tiers.put(keyPrefix, new Tier(timeUnit.toMillis(baseTtl), timeUnit.toMillis(maxTtl)));
+    }
+
+    @Override
+    public long ttlMillis(String key, long baseTtlMillis) {
+        Tier tier = tierOf(key);
+        long ttl = tier == null ? baseTtlMillis : tier.baseTtlMillis;
+        long maxTtl = tier == null ? (long) (baseTtlMillis * (1 + maxBoost)) : tier.maxTtlMillis;
+        // 每次写缓存都重新开始统计读取次数
+        LongAdder reads = readCounts.asMap().remove(key);
+        if (reads != null && recentUpdates.getIfPresent(key) == null) {
+            double boost = Math.min(maxBoost, Math.log(1 + reads.sum()) / Math.log(2) / 10);
+            ttl = Math.min(maxTtl, (long) (ttl * (1 + boost)));
+        }
+        return jitter(ttl);
+    }
+
+    @Override
+    public long jitter(long ttlMillis) {
+        if (jitterRatio > 0) {
+            ttlMillis = (long) (ttlMillis * (1 + ThreadLocalRandom.current().nextDouble(-jitterRatio, jitterRatio)));
+        }
+        return Math.max(1, ttlMillis);
+    }
+
+    @Override
+    public void recordRead(String key) {
+        readCounts.get(key, k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void recordUpdate(String key) {
+        recentUpdates.put(key, System.currentTimeMillis());
+        readCounts.invalidate(key);
+    }
+
+    private Tier tierOf(String key) {
+        for (Map.Entry<String, Tier> entry : tiers.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.Exchange;
+import org.springframework.amqp.rabbit.annotation.Queue;
+import org.springframework.amqp.rabbit.annotation.QueueBinding;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.autoconfigure.amqp.RabbitProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.retry.backoff.ExponentialBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.config.MqConfig.SECKILL_DEAD_EXCHANGE;
+import static com.hmdp.config.MqConfig.SECKILL_DEAD_ROUTING_KEY;
+import static com.hmdp.config.MqConfig.SECKILL_EXCHANGE;
+import static com.hmdp.config.MqConfig.SECKILL_QUEUE;
+import static com.hmdp.config.MqConfig.SECKILL_ROUTING_KEY;
+
+/**
+ * 批量消费秒杀订单，开启hmdp.seckill.order.batch.enabled后替代VoucherOrderListener。
+ * 一批订单在一个事务中去重、按券聚合扣减库存、多行insert；事务提交后监听器返回，容器才ack整批消息，
+ * 整批处理失败时逐条重试，每条订单按spring.rabbitmq.listener.simple.retry的次数和指数退避重试，
+ * 与单条消费的VoucherOrderListener相同，重试耗尽的订单才转入死信队列；createVoucherOrders会跳过已经存在的订单。
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "hmdp.seckill.order.batch.enabled", havingValue = "true")
+public class BatchVoucherOrderListener {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+    @Resource
+    private SeckillStockLedger seckillStockLedger;
+    @Resource
+    private RabbitProperties rabbitProperties;
+
+    private RetryTemplate retryTemplate;
+
+    @PostConstruct
+    public void init() {
+        RabbitProperties.ListenerRetry retry = rabbitProperties.getListener().getSimple().getRetry();
+        ExponentialBackOffPolicy backOffPolicy = new ExponentialBackOffPolicy();
+        backOffPolicy.setInitialInterval(retry.getInitialInterval().toMillis());
+        backOffPolicy.setMultiplier(retry.getMultiplier());
+        backOffPolicy.setMaxInterval(retry.getMaxInterval().toMillis());
+        retryTemplate = new RetryTemplate();
+        retryTemplate.setRetryPolicy(new SimpleRetryPolicy(retry.getMaxAttempts()));
+        retryTemplate.setBackOffPolicy(backOffPolicy);
+    }
+
+    @RabbitListener(containerFactory = "batchListenerContainerFactory", bindings = @QueueBinding(
+            value = @Queue(name = SECKILL_QUEUE),
+            exchange = @Exchange(name = SECKILL_EXCHANGE),
+            key = SECKILL_ROUTING_KEY
+    ))
+    public void onMessages(List<VoucherOrder> voucherOrders) {
+        log.debug("批量处理秒杀订单：{}条", voucherOrders.size());
+        try {
+            voucherOrderService.createVoucherOrders(voucherOrders);
+        } catch (Exception e) {
+            log.error("批量处理秒杀订单失败，逐条重试", e);
+            voucherOrders.forEach(this::createOrDeadLetter);
+        }
+    }
+
+    /**
+     * 单条订单按退避策略重试，重试耗尽后转入死信队列并归还redis库存，不影响同一批的其他订单。
+     * 数据库短暂不可用时订单在重试期间保持未ack，不会因为一次失败就被取消
+     */
+    private void createOrDeadLetter(VoucherOrder voucherOrder) {
+        try {
+            retryTemplate.execute(context -> {
+                if (context.getRetryCount() > 0) {
+                    log.warn("重试处理订单，订单id：{}，第{}次", voucherOrder.getId(), context.getRetryCount());
+                }
+                voucherOrderService.createVoucherOrders(Collections.singletonList(voucherOrder));
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("处理订单重试耗尽，转入死信队列，订单id：{}", voucherOrder.getId(), e);
+            rabbitTemplate.convertAndSend(SECKILL_DEAD_EXCHANGE, SECKILL_DEAD_ROUTING_KEY, voucherOrder);
+            meterRegistry.counter("seckill.order.dead.lettered").increment();
+            orderStatusTracker.failed(voucherOrder.getId());
+            seckillStockLedger.release(voucherOrder.getVoucherId(), voucherOrder.getUserId());
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RBucket;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 防缓存穿透的布隆过滤器，按缓存key前缀划分（店铺、博客、用户各一个）。
+ * 启动时从数据库重建，新增数据时同步写入；重建完成前一律放行。
+ * <p>
+ * local模式下每个节点各有一份过滤器：put通过pub/sub广播给所有节点，并且每隔rebuild-interval-ms在后台重建一份新的过滤器后替换，
+ * 覆盖广播丢失和直接写入数据库（例如触发器、数据导入）的数据；redis模式下由一个节点定期把数据库中的id补充进共享的过滤器。
+ */
+@Slf4j
+@Component
+public class BloomFilterManager implements ApplicationRunner, MessageListener {
+
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private UserMapper userMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private RedisLockFactory redisLockFactory;
+
+    @Value("${hmdp.bloom.backend:local}")
+    private String backend;
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    private final Map<String, IBloomFilter> filters = new ConcurrentHashMap<>();
+    private final Set<String> readyFilters = ConcurrentHashMap.newKeySet();
+    // 正在后台重建的local过滤器，重建期间的put同时写入，替换后不会丢失
+    private final Map<String, IBloomFilter> rebuilding = new ConcurrentHashMap<>();
+    private final Map<String, BaseMapper<?>> mappers = new LinkedHashMap<>();
+    // 每个前缀被过滤器拦截的次数
+    private final Map<String, Counter> rejectedCounters = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        mappers.put(CACHE_SHOP_KEY, shopMapper);
+        mappers.put(CACHE_BLOG_KEY, blogMapper);
+        mappers.put(CACHE_USER_KEY, userMapper);
+        mappers.keySet().forEach(prefix -> rejectedCounters.put(prefix,
+                Counter.builder("cache.bloom.rejected").tag("prefix", prefix).register(meterRegistry)));
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_FILTER_CHANNEL));
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        Thread thread = new Thread(() -> mappers.forEach(this::rebuild), "bloom-filter-init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 定期从数据库重新加载，初始化失败的过滤器也会在这里重试
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.rebuild-interval-ms:1800000}",
+            initialDelayString = "${hmdp.bloom.rebuild-interval-ms:1800000}")
+    public void refresh() {
+        if ("redis".equals(backend)) {
+            ILock lock = redisLockFactory.createLock(LOCK_BLOOM_REFRESH_NAME);
+            if (!lock.tryLock(600)) {
+                return;
+            }
+            try {
+                mappers.forEach(this::reload);
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        mappers.forEach(this::reload);
+    }
+
+    /**
+     * id是否可能存在，对应的过滤器未注册或尚未加载完成时返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        IBloomFilter filter = filters.get(keyPrefix);
+        if (filter == null || !readyFilters.contains(keyPrefix)) {
+            return true;
+        }
+        if (filter.mightContain(id.toString())) {
+            return true;
+        }
+        rejectedCounters.get(keyPrefix).increment();
+        return false;
+    }
+
+    /**
+     * 新增数据后调用，保证新id能通过过滤器
+     */
+    public void put(String keyPrefix, Object id) {
+        if (id == null) {
+            return;
+        }
+        putLocal(keyPrefix, id.toString());
+        if (!"redis".equals(backend)) {
+            stringRedisTemplate.convertAndSend(BLOOM_FILTER_CHANNEL, keyPrefix + " " + id);
+        }
+    }
+
+    /**
+     * 按缓存key新增id，用于直接写入数据库、只经过发件箱的数据；key的前缀没有对应的过滤器时忽略
+     */
+    public void putKey(String key) {
+        for (String keyPrefix : mappers.keySet()) {
+            if (key.startsWith(keyPrefix)) {
+                put(keyPrefix, key.substring(keyPrefix.length()));
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.lastIndexOf(' ');
+        if (i > 0) {
+            putLocal(body.substring(0, i), body.substring(i + 1));
+        }
+    }
+
+    /**
+     * 先写正在重建的过滤器再写当前的：重建完成时先替换再移除，这个顺序下新id不会只落在被替换掉的过滤器中
+     */
+    private void putLocal(String keyPrefix, String id) {
+        IBloomFilter next = rebuilding.get(keyPrefix);
+        if (next != null) {
+            next.put(id);
+        }
+        IBloomFilter filter = filters.get(keyPrefix);
+        if (filter != null) {
+            filter.put(id);
+        }
+    }
+
+    /**
+     * local模式下加载一份新的过滤器后替换旧的，加载期间旧的过滤器继续使用；redis模式下补充共享过滤器中缺少的id
+     */
+    private void reload(String keyPrefix, BaseMapper<?> mapper) {
+        IBloomFilter current = filters.get(keyPrefix);
+        if (current == null || !readyFilters.contains(keyPrefix)) {
+            rebuild(keyPrefix, mapper);
+            return;
+        }
+        try {
+            if ("redis".equals(backend)) {
+                load(current, mapper);
+                return;
+            }
+            IBloomFilter next = new LocalBloomFilter(expectedInsertions, fpp);
+            rebuilding.put(keyPrefix, next);
+            try {
+                long count = load(next, mapper);
+                filters.put(keyPrefix, next);
+                log.debug("布隆过滤器重建完成，prefix：{}，加载id数：{}", keyPrefix, count);
+            } finally {
+                rebuilding.remove(keyPrefix);
+            }
+        } catch (Exception e) {
+            log.error("布隆过滤器重建失败，prefix：{}，继续使用原过滤器", keyPrefix, e);
+        }
+    }
+
+    private void rebuild(String keyPrefix, BaseMapper<?> mapper) {
+        boolean needLoad = true;
+        RBucket<String> loadedFlag = null;
+        IBloomFilter filter;
+        if ("redis".equals(backend)) {
+            RBloomFilter<String> rBloomFilter = redissonClient.getBloomFilter(BLOOM_FILTER_KEY + keyPrefix, StringCodec.INSTANCE);
+            rBloomFilter.tryInit(expectedInsertions, fpp);
+            // 其他节点已经完整加载过，之后的数据由新增时的put维护，无需重复加载
+            loadedFlag = redissonClient.getBucket(BLOOM_FILTER_KEY + keyPrefix + ":loaded", StringCodec.INSTANCE);
+            needLoad = !loadedFlag.isExists();
+            filter = new RedisBloomFilter(rBloomFilter);
+        } else {
+            filter = new LocalBloomFilter(expectedInsertions, fpp);
+        }
+        filters.put(keyPrefix, filter);
+        try {
+            long count = needLoad ? load(filter, mapper) : 0;
+            if (loadedFlag != null && needLoad) {
+                loadedFlag.set("1");
+            }
+            readyFilters.add(keyPrefix);
+            log.info("布隆过滤器初始化完成，prefix：{}，backend：{}，加载id数：{}", keyPrefix, backend, count);
+        } catch (Exception e) {
+            log.error("布隆过滤器初始化失败，prefix：{}，将放行所有请求", keyPrefix, e);
+        }
+    }
+
+    /**
+     * 按主键分批加载，避免一次把整张表读进内存
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private long load(IBloomFilter filter, BaseMapper mapper) {
+        long lastId = 0;
+        long count = 0;
+        while (true) {
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + LOAD_BATCH_SIZE));
+            for (Object id : ids) {
+                filter.put(id.toString());
+            }
+            count += ids.size();
+            if (ids.size() < LOAD_BATCH_SIZE) {
+                return count;
+            }
+            lastId = Long.parseLong(ids.get(ids.size() - 1).toString());
+        }
+    }
+}
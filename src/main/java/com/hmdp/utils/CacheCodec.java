@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * 缓存值的编解码器，CacheUtil按key前缀选择具体实现
+ */
+public interface CacheCodec {
+
+    /**
+     * 编解码器名称，用于配置
+     */
+    String name();
+
+    /**
+     * 写入redis的帧头中的编号，读取时据此选择编解码器
+     */
+    byte id();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> clazz);
+
+    <T> List<T> decodeList(byte[] bytes, int offset, int length, Class<T> clazz);
+}
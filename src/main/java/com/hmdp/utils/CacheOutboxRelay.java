@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.utils.RedisConstants.LOCK_CACHE_OUTBOX_NAME;
+
+/**
+ * 缓存失效发件箱的投递器。
+ * 业务数据变更时由数据库触发器在同一事务内向tb_cache_outbox写入要失效的key，
+ * 事务提交后（或定时轮询时）按id顺序分批取出并删除缓存，删除成功后再删除发件箱记录，
+ * 因此无论是业务代码还是直接修改数据库，缓存都会在提交之后失效，不会被并发读取回填旧数据。
+ * 发件箱中的id同时加入布隆过滤器，直接插入数据库的新数据不会被过滤器拦截；更新和删除的id重复加入不影响正确性。
+ */
+@Slf4j
+@Component
+public class CacheOutboxRelay {
+
+    @Resource
+    private CacheOutboxMapper cacheOutboxMapper;
+    @Resource
+    private CacheUtil cacheUtil;
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+    @Resource
+    private RedisLockFactory redisLockFactory;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.outbox.batch-size:500}")
+    private int batchSize;
+    // 第一次删除后延迟再删一次，清理提交前读到旧数据、提交后才写回缓存的请求，<=0表示关闭
+    @Value("${hmdp.cache.outbox.double-delete-ms:500}")
+    private long doubleDeleteMillis;
+    @Value("${hmdp.cache.outbox.lock-seconds:30}")
+    private long lockSeconds;
+
+    // 单线程保证本节点内按顺序投递，多节点之间通过redis锁互斥
+    private final ScheduledExecutorService relayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-outbox");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private Counter relayedCounter;
+
+    @PostConstruct
+    public void init() {
+        relayedCounter = meterRegistry.counter("cache.outbox.relayed");
+    }
+
+    @PreDestroy
+    public void destroy() {
+        relayExecutor.shutdown();
+    }
+
+    /**
+     * 当前事务提交后立即投递发件箱，不在事务中时直接投递
+     */
+    public void relayAfterCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            wakeUp();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                wakeUp();
+            }
+        });
+    }
+
+    /**
+     * 兜底轮询，处理直接修改数据库以及投递失败的记录
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.outbox.interval-ms:1000}")
+    public void poll() {
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        // 已经有一次投递在排队时不再重复提交
+        if (pending.compareAndSet(false, true)) {
+            relayExecutor.execute(() -> {
+                pending.set(false);
+                relay();
+            });
+        }
+    }
+
+    private void relay() {
+        ILock lock = redisLockFactory.createLock(LOCK_CACHE_OUTBOX_NAME);
+        if (!lock.tryLock(lockSeconds)) {
+            return;
+        }
+        try {
+            List<CacheOutbox> batch;
+            do {
+                batch = cacheOutboxMapper.selectList(new QueryWrapper<CacheOutbox>()
+                        .orderByAsc("id")
+                        .last("limit " + batchSize));
+                if (batch.isEmpty()) {
+                    break;
+                }
+                // 同一批中重复的key只删除一次，保持第一次出现的顺序
+                Set<String> keys = new LinkedHashSet<>();
+                List<Long> ids = new ArrayList<>(batch.size());
+                for (CacheOutbox outbox : batch) {
+                    keys.add(outbox.getCacheKey());
+                    ids.add(outbox.getId());
+                }
+                for (String key : keys) {
+                    bloomFilterManager.putKey(key);
+                    cacheUtil.evict(key);
+                }
+                cacheOutboxMapper.deleteBatchIds(ids);
+                relayedCounter.increment(batch.size());
+                if (doubleDeleteMillis > 0) {
+                    relayExecutor.schedule(() -> keys.forEach(cacheUtil::evict), doubleDeleteMillis, TimeUnit.MILLISECONDS);
+                }
+            } while (batch.size() == batchSize);
+        } catch (Exception e) {
+            // 记录未被删除，下次轮询会重试
+            log.error("缓存失效发件箱投递失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
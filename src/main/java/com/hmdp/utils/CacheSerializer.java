@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 缓存值的序列化入口，按key前缀选择编解码器。
+ * <p>
+ * 二进制编码的格式：1字节帧头标记 + 1字节编解码器编号 + 8字节逻辑过期时间（毫秒，0表示无） + 数据。
+ * json编码保持原来不带帧头的格式，逻辑过期仍然包装成RedisData，旧版本节点可以直接读取。
+ * 读取时根据帧头区分两种格式，迁移期间新旧数据可以共存。
+ */
+@Component
+public class CacheSerializer {
+
+    // json文本不会以0x00开头，可以据此区分新旧格式
+    private static final byte MAGIC = 0;
+    private static final int HEADER_LENGTH = 10;
+
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+    private final Map<String, CacheCodec> codecsByName = new ConcurrentHashMap<>();
+    private final Map<Byte, CacheCodec> codecsById = new ConcurrentHashMap<>();
+    private final Map<String, CacheCodec> prefixCodecs = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.cache.codec.default:json}")
+    private String defaultCodecName;
+    // 是否读取旧的json格式，关闭后旧数据视为未命中，由加载逻辑重新写入
+    @Value("${hmdp.cache.codec.read-legacy:true}")
+    private boolean readLegacy;
+
+    private CacheCodec defaultCodec;
+
+    @PostConstruct
+    public void init() {
+        register(jsonCodec);
+        register(new SmileCacheCodec());
+        defaultCodec = codec(defaultCodecName);
+    }
+
+    public void register(CacheCodec codec) {
+        codecsByName.put(codec.name(), codec);
+        codecsById.put(codec.id(), codec);
+    }
+
+    /**
+     * 指定某个key前缀使用的编解码器
+     */
+    public void useCodec(String keyPrefix, String codecName) {
+        prefixCodecs.put(keyPrefix, codec(codecName));
+    }
+
+    public byte[] serialize(String key, Object value) {
+        return serialize(key, value, 0L);
+    }
+
+    /**
+     * @param expireMillis 逻辑过期时间的毫秒时间戳，0表示不带逻辑过期
+     */
+    public byte[] serialize(String key, Object value, long expireMillis) {
+        CacheCodec codec = codecFor(key);
+        if (codec == jsonCodec) {
+            Object obj = expireMillis > 0 ? new RedisData(toLocalDateTime(expireMillis), value) : value;
+            return jsonCodec.encode(obj);
+        }
+        byte[] payload = codec.encode(value);
+        return ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                .put(MAGIC)
+                .put(codec.id())
+                .putLong(expireMillis)
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * @return 反序列化后的对象，不支持的旧格式返回null
+     */
+    public <T> T deserialize(byte[] bytes, Class<T> clazz) {
+        if (isFramed(bytes)) {
+            return codecOf(bytes).decode(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, clazz);
+        }
+        return readLegacy ? jsonCodec.decode(bytes, 0, bytes.length, clazz) : null;
+    }
+
+    public <T> List<T> deserializeList(byte[] bytes, Class<T> clazz) {
+        if (isFramed(bytes)) {
+            return codecOf(bytes).decodeList(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, clazz);
+        }
+        return readLegacy ? jsonCodec.decodeList(bytes, 0, bytes.length, clazz) : null;
+    }
+
+    /**
+     * 反序列化带逻辑过期时间的数据，data字段为clazz类型的对象
+     *
+     * @return 不支持的旧格式返回null
+     */
+    public <T> RedisData deserializeWithExpire(byte[] bytes, Class<T> clazz) {
+        if (isFramed(bytes)) {
+            T data = codecOf(bytes).decode(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, clazz);
+            return new RedisData(readExpireTime(bytes), data);
+        }
+        if (!readLegacy) {
+            return null;
+        }
+        RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        // 没有逻辑过期时间说明是普通缓存写入的数据，按未命中处理
+        if (redisData.getExpireTime() == null || !(redisData.getData() instanceof JSONObject)) {
+            return null;
+        }
+        return new RedisData(redisData.getExpireTime(), JSONUtil.toBean((JSONObject) redisData.getData(), clazz));
+    }
+
+    /**
+     * 只读取逻辑过期时间，不反序列化数据
+     */
+    public LocalDateTime readExpireTime(byte[] bytes) {
+        if (isFramed(bytes)) {
+            return toLocalDateTime(ByteBuffer.wrap(bytes, 2, 8).getLong());
+        }
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class).getExpireTime();
+    }
+
+    public static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toLocalDateTime(long epochMilli) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault());
+    }
+
+    private CacheCodec codecFor(String key) {
+        for (Map.Entry<String, CacheCodec> entry : prefixCodecs.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return defaultCodec;
+    }
+
+    private CacheCodec codec(String name) {
+        CacheCodec codec = codecsByName.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("未知的缓存编解码器：" + name);
+        }
+        return codec;
+    }
+
+    private CacheCodec codecOf(byte[] bytes) {
+        CacheCodec codec = codecsById.get(bytes[1]);
+        if (codec == null) {
+            throw new IllegalStateException("未知的缓存编解码器编号：" + bytes[1]);
+        }
+        return codec;
+    }
+
+    private static boolean isFramed(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+}
@@ -1,18 +1,29 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -22,6 +33,161 @@ public class CacheUtil {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisTemplate<String, byte[]> byteRedisTemplate;
+    // 不写入本地缓存的读取优先走副本，见readCache
+    @Resource
+    private RedisTemplate<String, byte[]> replicaByteRedisTemplate;
+    @Resource
+    private CacheSerializer cacheSerializer;
+    @Resource
+    private NearCache nearCache;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private SingleFlight singleFlight;
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private ExpirePolicy expirePolicy;
+    @Resource
+    private RedisLockFactory redisLockFactory;
+
+    @Value("${hmdp.cache.single-flight.distributed:false}")
+    private boolean distributedSingleFlight;
+    // 逻辑过期的key在逻辑过期之后保留的时间，超过后由redis删除
+    @Value("${hmdp.cache.logic-expire.grace-seconds:3600}")
+    private long logicExpireGraceSeconds;
+    // 提前刷新的key在这段时间内没有作为热点被读取，就移出刷新索引
+    @Value("${hmdp.cache.refresh.idle-seconds:1800}")
+    private long refreshIdleSeconds;
+    // 同一个节点对同一个key最多每隔这段时间记录一次访问
+    @Value("${hmdp.cache.refresh.touch-interval-seconds:60}")
+    private long refreshTouchIntervalSeconds;
+
+    private static final long SINGLE_FLIGHT_WAIT_MILLIS = 1000L;
+    private static final long SINGLE_FLIGHT_LEASE_SECONDS = 10L;
+    // redis中的空对象，防止缓存穿透
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    /**
+     * Enable in-process L1 cache for keys with the given prefix
+     *
+     * @param keyPrefix   The key prefix, e.g. CACHE_SHOP_KEY
+     * @param maximumSize Max entries kept in this JVM
+     * @param timeOut     TTL of the local entries
+     * @param timeUnit    TimeUnit of TTL
+     */
+    public void enableLocalCache(String keyPrefix, long maximumSize, long timeOut, TimeUnit timeUnit) {
+        nearCache.register(keyPrefix, maximumSize, timeOut, timeUnit);
+    }
+
+    /**
+     * Choose the codec for keys with the given prefix, see CacheSerializer
+     *
+     * @param keyPrefix The key prefix, e.g. CACHE_SHOP_KEY
+     * @param codecName JsonCacheCodec.NAME or SmileCacheCodec.NAME
+     */
+    public void useCodec(String keyPrefix, String codecName) {
+        cacheSerializer.useCodec(keyPrefix, codecName);
+    }
+
+    /**
+     * Configure TTL tier of keys with the given prefix, see ExpirePolicy
+     *
+     * @param keyPrefix The key prefix, e.g. CACHE_SHOP_KEY
+     * @param baseTtl   Base TTL, overrides the TTL given by callers
+     * @param maxTtl    Upper bound of adaptive TTL
+     * @param timeUnit  TimeUnit of TTL
+     */
+    public void registerExpireTier(String keyPrefix, long baseTtl, long maxTtl, TimeUnit timeUnit) {
+        expirePolicy.registerTier(keyPrefix, baseTtl, maxTtl, timeUnit);
+    }
+
+    /**
+     * Track logic expire time of keys with the given prefix so they can be refreshed ahead of expiry.
+     * Only warmed keys and keys read as hot keys are tracked, see saveObjectWithLogicExpire
+     *
+     * @param keyPrefix The key prefix, e.g. CACHE_SHOP_KEY
+     */
+    public void enableRefreshAhead(String keyPrefix) {
+        refreshAheadPrefixes.add(keyPrefix);
+    }
+
+    /**
+     * Reload the object and rewrite it with a new logic expire time, no matter whether it has expired.
+     * Only one node refreshes a key at a time.
+     *
+     * @param key      The key of the object
+     * @param loader   Loader of the object, null means the object no longer exists
+     * @param timeOut  Logic expire time
+     * @param timeUnit TimeUnit of timeOut
+     * @return false if another thread or node is rebuilding the key
+     */
+    public boolean refresh(String key, Supplier<?> loader, long timeOut, TimeUnit timeUnit) {
+        // 本节点正在重建的key不再访问redis抢锁
+        if (!rebuildingKeys.add(key)) {
+            return false;
+        }
+        ILock lock = tryRebuildLock(key);
+        if (lock == null) {
+            rebuildingKeys.remove(key);
+            return false;
+        }
+        try {
+            Object object = loader.get();
+            if (object == null) {
+                evict(key);
+                removeRefreshAhead(key);
+            } else {
+                // 只更新索引中的逻辑过期时间，不记录访问，没有读取的key会逐渐空闲并移出索引
+                long expireMillis = writeLogicExpire(key, object, timeOut, timeUnit);
+                stringRedisTemplate.opsForZSet().add(CACHE_REFRESH_INDEX_KEY, key, expireMillis);
+                nearCache.invalidate(key);
+            }
+            return true;
+        } finally {
+            rebuildingKeys.remove(key);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the key from the refresh-ahead index if it has not been read as a hot key for a while,
+     * it then expires physically like any other logic expire key
+     *
+     * @param key The key of the object
+     * @return true if the key is idle and has been removed
+     */
+    public boolean removeIfIdle(String key) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(CACHE_REFRESH_TOUCH_KEY + key))) {
+            return false;
+        }
+        stringRedisTemplate.opsForZSet().remove(CACHE_REFRESH_INDEX_KEY, key);
+        return true;
+    }
+
+    /**
+     * Drop local copies (L1 and hot key replicas) of the key on every node, redis is untouched
+     *
+     * @param key The key of the object
+     */
+    public void invalidateLocal(String key) {
+        nearCache.invalidate(key);
+    }
+
+    /**
+     * Delete the object from redis and from the L1 cache of every node
+     *
+     * @param key The key of the object
+     */
+    public void evict(String key) {
+        expirePolicy.recordUpdate(key);
+        stringRedisTemplate.delete(key);
+        nearCache.invalidate(key);
+    }
 
     /**
      * Save any java object with TTL
@@ -36,28 +202,69 @@ public class CacheUtil {
             log.error("请勿缓存空对象");
             return;
         }
-        String jsonStr = JSONUtil.toJsonStr(object);
-        stringRedisTemplate.opsForValue().set(key, jsonStr, timeOut, timeUnit);
+        long ttl = expirePolicy.ttlMillis(key, timeUnit.toMillis(timeOut));
+        byteRedisTemplate.opsForValue().set(key, cacheSerializer.serialize(key, object), ttl, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Save Object With Logic Expire Time
+     * Save any java object without TTL
+     *
+     * @param key    The key of the object
+     * @param object Object to save to redis
+     */
+    public void saveObject(String key, Object object) {
+        if (object == null) {
+            log.error("请勿缓存空对象");
+            return;
+        }
+        byteRedisTemplate.opsForValue().set(key, cacheSerializer.serialize(key, object));
+    }
+
+    /**
+     * Save Object With Logic Expire Time, the key is not added to the refresh-ahead index
      *
      * @param key     The key of the object
      * @param object  Object to save to redis
      * @param timeOut Use LocalDateTime.now() to plus this timeout to be the logic expire time of the object
      */
     public String saveObjectWithLogicExpire(String key, Object object, long timeOut, TimeUnit timeUnit) {
+        return saveObjectWithLogicExpire(key, object, timeOut, timeUnit, false);
+    }
+
+    /**
+     * Save Object With Logic Expire Time. The key also gets a physical TTL of the logic expire time
+     * plus a grace period, so keys nobody reads any more are eventually removed by redis.
+     *
+     * @param key          The key of the object
+     * @param object       Object to save to redis
+     * @param timeOut      Use LocalDateTime.now() to plus this timeout to be the logic expire time of the object
+     * @param refreshAhead Track the key in the refresh-ahead index, used for warmed and hot keys
+     */
+    public String saveObjectWithLogicExpire(String key, Object object, long timeOut, TimeUnit timeUnit, boolean refreshAhead) {
         if (object == null) {
             log.error("请勿缓存空对象");
             return "";
         }
-        RedisData redisData = new RedisData(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(timeOut)), object);
-        String jsonStr = JSONUtil.toJsonStr(redisData);
-        stringRedisTemplate.opsForValue().set(key, jsonStr);
+        long expireMillis = writeLogicExpire(key, object, timeOut, timeUnit);
+        // 记录逻辑过期时间和访问，供CacheWarmer提前刷新
+        if (refreshAhead && isRefreshAhead(key)) {
+            stringRedisTemplate.opsForValue().set(CACHE_REFRESH_TOUCH_KEY + key, "1", refreshIdleSeconds, TimeUnit.SECONDS);
+            stringRedisTemplate.opsForZSet().add(CACHE_REFRESH_INDEX_KEY, key, expireMillis);
+        }
         return "成功";
     }
 
+    /**
+     * @return 逻辑过期的毫秒时间戳
+     */
+    private long writeLogicExpire(String key, Object object, long timeOut, TimeUnit timeUnit) {
+        long ttl = expirePolicy.ttlMillis(key, timeUnit.toMillis(timeOut));
+        long expireMillis = System.currentTimeMillis() + ttl;
+        byteRedisTemplate.opsForValue().set(key, cacheSerializer.serialize(key, object, expireMillis),
+                ttl + TimeUnit.SECONDS.toMillis(logicExpireGraceSeconds), TimeUnit.MILLISECONDS);
+        return expireMillis;
+    }
+
 
     /**
      * Query object with cache penetration and cache null object instead
@@ -75,22 +282,181 @@ public class CacheUtil {
     public <T, ID> T getObject(String keyPrefix, ID id, Class<T> clazz, Function<ID, T> function,
                                long timeOut, TimeUnit timeUnit) {
         String key = keyPrefix + id;
-        String jsonStr = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(jsonStr)) {
-            return JSONUtil.toBean(jsonStr, clazz);
+        boolean hot = hotKeyDetector.record(key);
+        expirePolicy.recordRead(key);
+        // 先查本地缓存，命中则不再访问redis，也省去反序列化
+        Object local = nearCache.get(keyPrefix, key);
+        if (local != null) {
+            return clazz.cast(local);
+        }
+        // 热点key的本地副本
+        Object replica = hot ? hotKeyDetector.getReplica(key) : null;
+        if (replica != null) {
+            return clazz.cast(replica);
         }
-        if (null != jsonStr) { // jsonStr = "";查到redis中的空对象，直接返回null，不会再将请求打到数据库
+        // 布隆过滤器判定不存在的id直接返回，不访问redis和数据库
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
             return null;
         }
-        T t = function.apply(id); // 查询数据库或其他操作
-        if (null == t) {
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+        boolean populateLocal = hot || nearCache.isEnabled(keyPrefix);
+        byte[] bytes = readCache(key, populateLocal);
+        if (bytes != null && bytes.length == 0) { // 查到redis中的空对象，直接返回null，不会再将请求打到数据库
             return null;
         }
-        this.saveObject(key, t, timeOut, timeUnit);
+        if (bytes != null) {
+            T t = cacheSerializer.deserialize(bytes, clazz);
+            // 为null说明是不再兼容的旧格式，按未命中处理
+            if (t != null) {
+                if (populateLocal) {
+                    nearCache.put(keyPrefix, key, t);
+                    hotKeyDetector.putReplica(key, t);
+                }
+                return t;
+            }
+        }
+        // 未命中，同一个key的并发请求合并为一次数据库查询
+        T t = loadCoalesced(key, () -> {
+            T t1 = function.apply(id); // 查询数据库或其他操作
+            if (null == t1) {
+                saveNull(key);
+                return null;
+            }
+            this.saveObject(key, t1, timeOut, timeUnit);
+            return t1;
+        }, () -> {
+            byte[] b = byteRedisTemplate.opsForValue().get(key);
+            return b == null || b.length == 0 ? null : cacheSerializer.deserialize(b, clazz);
+        });
+        nearCache.put(keyPrefix, key, t);
         return t;
     }
 
+    /**
+     * Query list with cache, concurrent misses are coalesced into one load
+     *
+     * @param key      The key of the list
+     * @param clazz    Element class
+     * @param function Loader of the list, e.g. query db
+     * @param <T>
+     * @return
+     */
+    public <T> List<T> getList(String key, Class<T> clazz, Supplier<List<T>> function) {
+        byte[] bytes = readCache(key, false);
+        if (bytes != null && bytes.length > 0) {
+            List<T> list = cacheSerializer.deserializeList(bytes, clazz);
+            if (list != null) {
+                return list;
+            }
+        }
+        return loadCoalesced(key, () -> {
+            List<T> list = function.get();
+            if (list != null && !list.isEmpty()) {
+                byteRedisTemplate.opsForValue().set(key, cacheSerializer.serialize(key, list));
+            }
+            return list;
+        }, () -> {
+            byte[] b = byteRedisTemplate.opsForValue().get(key);
+            return b == null || b.length == 0 ? null : cacheSerializer.deserializeList(b, clazz);
+        });
+    }
+
+
+    /**
+     * Batch query objects: one MGET for all keys, one batch load for all misses,
+     * and one pipeline to write the loaded objects (and null objects) back.
+     * Every key is recorded for hot key detection and adaptive ttl like getObject,
+     * and misses already being loaded by other calls (single or batch) wait for that load instead of hitting the db again
+     *
+     * @param keyPrefix
+     * @param ids
+     * @param clazz
+     * @param function  Batch loader, ids absent from the returned map are cached as null objects
+     * @param timeOut
+     * @param timeUnit
+     * @param <T>
+     * @param <ID>
+     * @return map of id to object, ids that do not exist are absent
+     */
+    public <T, ID> Map<ID, T> getObjects(String keyPrefix, Collection<ID> ids, Class<T> clazz,
+                                         Function<Collection<ID>, Map<ID, T>> function,
+                                         long timeOut, TimeUnit timeUnit) {
+        Map<ID, T> result = new HashMap<>(ids.size());
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        Set<String> hotKeys = new HashSet<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            String key = keyPrefix + id;
+            boolean hot = hotKeyDetector.record(key);
+            expirePolicy.recordRead(key);
+            Object local = nearCache.get(keyPrefix, key);
+            if (local == null && hot) {
+                local = hotKeyDetector.getReplica(key);
+            }
+            if (local != null) {
+                result.put(id, clazz.cast(local));
+            } else if (bloomFilterManager.mightContain(keyPrefix, id)) {
+                remoteIds.add(id);
+                if (hot) {
+                    hotKeys.add(key);
+                }
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+        List<String> keys = remoteIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        List<byte[]> values = readCaches(keys, !hotKeys.isEmpty() || nearCache.isEnabled(keyPrefix));
+        Map<String, ID> missIds = new LinkedHashMap<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes != null && bytes.length == 0) {
+                continue;
+            }
+            T t = bytes == null ? null : cacheSerializer.deserialize(bytes, clazz);
+            if (t == null) {
+                missIds.put(keys.get(i), remoteIds.get(i));
+                continue;
+            }
+            result.put(remoteIds.get(i), t);
+            nearCache.put(keyPrefix, keys.get(i), t);
+            if (hotKeys.contains(keys.get(i))) {
+                hotKeyDetector.putReplica(keys.get(i), t);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        // 未命中的key逐个合并：正在被其他请求加载的key等待其结果，其余的一次批量加载
+        Map<String, T> loaded = singleFlight.executeAll(missIds.keySet(), loadKeys -> {
+            List<ID> loadIds = loadKeys.stream().map(missIds::get).collect(Collectors.toList());
+            Map<ID, T> byId = function.apply(loadIds);
+            byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : loadIds) {
+                    String key = keyPrefix + id;
+                    T t = byId == null ? null : byId.get(id);
+                    byte[] value = t == null ? NULL_VALUE : cacheSerializer.serialize(key, t);
+                    long ttl = t == null ? expirePolicy.jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL))
+                            : expirePolicy.ttlMillis(key, timeUnit.toMillis(timeOut));
+                    connection.set(key.getBytes(StandardCharsets.UTF_8), value,
+                            Expiration.milliseconds(ttl), RedisStringCommands.SetOption.UPSERT);
+                }
+                return null;
+            });
+            Map<String, T> byKey = new HashMap<>(loadIds.size());
+            if (byId != null) {
+                byId.forEach((id, t) -> byKey.put(keyPrefix + id, t));
+            }
+            return byKey;
+        });
+        missIds.forEach((key, id) -> {
+            Object t = loaded.get(key);
+            if (t != null) {
+                T value = clazz.cast(t);
+                result.put(id, value);
+                nearCache.put(keyPrefix, key, value);
+            }
+        });
+        return result;
+    }
 
     /**
      * Query object with cache penetration and cache object with logic expire instead
@@ -107,90 +473,270 @@ public class CacheUtil {
     public <T, ID> T queryWithLogicExpire(String keyPrefix, ID id, Class<T> clazz, Function<ID, T> function,
                                           long timeOut, TimeUnit timeUnit) {
         String key = keyPrefix + id;
-        String jsonStr = stringRedisTemplate.opsForValue().get(key);
-        // 未命中缓存，直接返回空对象
-        if (StrUtil.isBlank(jsonStr)) {
+        boolean hot = hotKeyDetector.record(key);
+        expirePolicy.recordRead(key);
+        // 本地缓存和热点副本中保存的是已反序列化的RedisData，逻辑过期时间同样有效
+        RedisData localData = (RedisData) nearCache.get(keyPrefix, key);
+        if (localData == null && hot) {
+            localData = (RedisData) hotKeyDetector.getReplica(key);
+        }
+        if (localData != null && LocalDateTime.now().isBefore(localData.getExpireTime())) {
+            if (hot) {
+                touchRefreshAhead(key, localData.getExpireTime());
+            }
+            return clazz.cast(localData.getData());
+        }
+        if (!bloomFilterManager.mightContain(keyPrefix, id)) {
+            return null;
+        }
+        boolean populateLocal = hot || nearCache.isEnabled(keyPrefix);
+        byte[] bytes = readCache(key, populateLocal);
+        // 查到redis中的空对象，直接返回null
+        if (bytes != null && bytes.length == 0) {
             return null;
         }
-        // 命中缓存，反序列化json字符串为redisData对象，判断expire time是否过期
-        RedisData redisData = JSONUtil.toBean(jsonStr, RedisData.class);;
+        // 命中缓存，反序列化为redisData对象，判断expire time是否过期
+        RedisData redisData = bytes == null ? null : cacheSerializer.deserializeWithExpire(bytes, clazz);
+        // 未命中缓存（未预热），合并并发请求加载一次并写入逻辑过期缓存
+        if (redisData == null) {
+            return loadCoalesced(key, () -> {
+                T t1 = function.apply(id);
+                if (t1 == null) {
+                    saveNull(key);
+                    return null;
+                }
+                this.saveObjectWithLogicExpire(key, t1, timeOut, timeUnit, hot);
+                return t1;
+            }, () -> {
+                byte[] b = byteRedisTemplate.opsForValue().get(key);
+                RedisData r = b == null || b.length == 0 ? null : cacheSerializer.deserializeWithExpire(b, clazz);
+                return r == null ? null : clazz.cast(r.getData());
+            });
+        }
         LocalDateTime expireTime = redisData.getExpireTime();
-        T t = JSONUtil.toBean((JSONObject) redisData.getData(), clazz);
+        T t = clazz.cast(redisData.getData());
         // 未过期则直接返回即可
         if (LocalDateTime.now().isBefore(expireTime)) {
+            if (populateLocal) {
+                RedisData data = new RedisData(expireTime, t);
+                nearCache.put(keyPrefix, key, data);
+                hotKeyDetector.putReplica(key, data);
+            }
+            if (hot) {
+                touchRefreshAhead(key, expireTime);
+            }
             return t;
         }
 
-        // 过期，尝试缓存重建
-        String lockKey = LOCK_SHOP_KEY + id;
+        // 过期，先直接返回旧数据，再在后台重建缓存（stale-while-revalidate）
+        rebuildAsync(keyPrefix, key, id, function, timeOut, timeUnit, hot);
+        return t;
+    }
 
-        boolean lock = tryLock(lockKey);
-        //获取锁成功，开启独立线程，执行缓存重建
-        if (lock) {
-            //先double check是否有未过期的缓存存在（被其他线程重建过的）,存在直接返回
-            String s = stringRedisTemplate.opsForValue().get(key);
-            RedisData r1 = JSONUtil.toBean(s, RedisData.class);
-            if (LocalDateTime.now().isBefore(r1.getExpireTime())) {
-                return JSONUtil.toBean((JSONObject) r1.getData(), clazz);
-            }
-            // 不存在，创建新线程执行缓存重建
-            Future<String> future = CACHE_REBUILD_EXECUTOR.submit(() -> {
+    /**
+     * 提交一次后台缓存重建，本JVM内同一个key同时只会有一个重建任务，
+     * 跨节点由redis分布式锁保证只有一个节点在重建。锁的持有者按线程区分，加锁和解锁都在重建线程中完成
+     */
+    private <T, ID> void rebuildAsync(String keyPrefix, String key, ID id, Function<ID, T> function,
+                                      long timeOut, TimeUnit timeUnit, boolean hot) {
+        if (!rebuildingKeys.add(key)) {
+            return;
+        }
+        Timer timer = Timer.builder("cache.rebuild.latency").tag("prefix", keyPrefix).register(meterRegistry);
+        try {
+            cacheRebuildExecutor.execute(() -> {
+                ILock lock = tryRebuildLock(key);
+                if (lock == null) {
+                    rebuildingKeys.remove(key);
+                    return;
+                }
+                long begin = System.nanoTime();
                 try {
+                    //获取锁成功，先double check是否已经被其他节点重建过了
+                    byte[] b = byteRedisTemplate.opsForValue().get(key);
+                    LocalDateTime latestExpireTime = b == null || b.length == 0 ? null : cacheSerializer.readExpireTime(b);
+                    if (latestExpireTime != null && LocalDateTime.now().isBefore(latestExpireTime)) {
+                        return;
+                    }
                     T t1 = function.apply(id);
-                    return this.saveObjectWithLogicExpire(key, t1, timeOut, timeUnit);
+                    if (t1 == null) {
+                        // 数据已经删除，不能继续返回旧数据
+                        evict(key);
+                        removeRefreshAhead(key);
+                    } else {
+                        this.saveObjectWithLogicExpire(key, t1, timeOut, timeUnit, hot);
+                    }
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("缓存重建失败，key：{}", key, e);
                 } finally {
-                    unlock(lockKey);
+                    timer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                    rebuildingKeys.remove(key);
+                    lock.unlock();
                 }
             });
-            try {
-                String s1 = future.get();
-                System.out.println(s1);
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException(e);
-            }
-
+        } catch (RejectedExecutionException e) {
+            // 队列已满，放弃本次重建，继续返回旧数据，下次访问时再尝试
+            log.warn("缓存重建队列已满，丢弃重建任务，key：{}", key);
+            rebuildRejected.increment();
+            rebuildingKeys.remove(key);
         }
-        return t;
     }
-//    /**
-//     * 缓存预热
-//     * @param id
-//     * @param expireTime
-//     */
-//    public String saveShop2Redis(Long id, Long expireTime) {
-//        Shop shop = getById(id);
-//        com.hmdp.entity.RedisData redisData = new com.hmdp.entity.RedisData();
-//        redisData.setData(shop);
-//        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireTime));
-//        redisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
-//        return Thread.currentThread().getName() + " 执行缓存重建成功！";
-//    }
-
-    //线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(
+
+    //线程池，有界队列，队列满时直接拒绝（由调用方丢弃本次重建）
+    private static final int CACHE_REBUILD_QUEUE_SIZE = 256;
+    private final ThreadPoolExecutor cacheRebuildExecutor = new ThreadPoolExecutor(
             5,
             Runtime.getRuntime().availableProcessors() + 1,
             10L,
             TimeUnit.SECONDS,
-            new LinkedBlockingDeque<>());
+            new ArrayBlockingQueue<>(CACHE_REBUILD_QUEUE_SIZE),
+            new ThreadPoolExecutor.AbortPolicy());
+    //需要记录逻辑过期时间的key前缀
+    private final Set<String> refreshAheadPrefixes = ConcurrentHashMap.newKeySet();
+    //正在重建的key，合并同一个key的重复重建
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+    //本节点最近记录过访问的提前刷新key，减少对redis的写入
+    private Cache<String, Boolean> refreshTouched;
+    private Counter rebuildRejected;
+
+    @PostConstruct
+    public void initMetrics() {
+        refreshTouched = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(refreshTouchIntervalSeconds, TimeUnit.SECONDS)
+                .build();
+        Gauge.builder("cache.rebuild.queue.size", cacheRebuildExecutor, e -> e.getQueue().size())
+                .register(meterRegistry);
+        Gauge.builder("cache.rebuild.in.flight", rebuildingKeys, Set::size)
+                .register(meterRegistry);
+        rebuildRejected = Counter.builder("cache.rebuild.rejected").register(meterRegistry);
+    }
+
     /**
-     * 加锁方法
-     * @param key
-     * @return true if succeed
+     * 合并同一个key的并发加载：本JVM内通过SingleFlight只执行一次loader；
+     * 开启分布式模式后再用redis锁跨节点合并，未抢到锁的节点等待解锁通知，持锁节点写入redis后直接读取
+     *
+     * @param key    缓存key
+     * @param loader 加载数据并写入redis
+     * @param reader 从redis读取已被其他节点写入的数据
      */
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return Boolean.TRUE.equals(flag);
+    private <T> T loadCoalesced(String key, Supplier<T> loader, Supplier<T> reader) {
+        return singleFlight.execute(key, () -> {
+            if (!distributedSingleFlight) {
+                return loader.get();
+            }
+            ILock lock = redisLockFactory.createLocalQueuedLock(LOCK_CACHE_LOAD_NAME + key);
+            boolean locked = false;
+            try {
+                locked = lock.tryLock(SINGLE_FLIGHT_WAIT_MILLIS,
+                        TimeUnit.SECONDS.toMillis(SINGLE_FLIGHT_LEASE_SECONDS), TimeUnit.MILLISECONDS);
+                // 抢到锁后double check，持锁节点可能刚刚写完
+                if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+                    return reader.get();
+                }
+                // 等待超时仍未抢到锁则降级为自己加载
+                return loader.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } finally {
+                if (locked) {
+                    lock.unlock();
+                }
+            }
+        });
     }
 
     /**
-     * 解锁方法
-     * @param key
+     * 读取一个缓存key。结果要写入本地缓存或热点副本时直接读主节点：更新时主节点上的key已删除并广播了失效通知，
+     * 从延迟的副本读到旧值再写回L1，会在本地缓存的整个TTL内返回旧数据。
+     * 其余的读取优先走副本，副本上没有或者是空对象时可能只是复制延迟（例如刚创建的店铺），再读一次主节点
      */
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    private byte[] readCache(String key, boolean populateLocal) {
+        if (!populateLocal) {
+            byte[] bytes = replicaByteRedisTemplate.opsForValue().get(key);
+            if (bytes != null && bytes.length > 0) {
+                return bytes;
+            }
+        }
+        return byteRedisTemplate.opsForValue().get(key);
+    }
+
+    /**
+     * 批量读取，规则同readCache，副本上没有命中的key再用一次MGET读主节点
+     */
+    private List<byte[]> readCaches(List<String> keys, boolean populateLocal) {
+        if (populateLocal) {
+            return byteRedisTemplate.opsForValue().multiGet(keys);
+        }
+        List<byte[]> values = replicaByteRedisTemplate.opsForValue().multiGet(keys);
+        List<byte[]> result = values == null ? new ArrayList<>(Collections.nCopies(keys.size(), null)) : new ArrayList<>(values);
+        List<String> missKeys = new ArrayList<>();
+        List<Integer> missIndexes = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] bytes = result.get(i);
+            if (bytes == null || bytes.length == 0) {
+                missKeys.add(keys.get(i));
+                missIndexes.add(i);
+            }
+        }
+        if (missKeys.isEmpty()) {
+            return result;
+        }
+        List<byte[]> master = byteRedisTemplate.opsForValue().multiGet(missKeys);
+        for (int i = 0; i < missIndexes.size(); i++) {
+            result.set(missIndexes.get(i), master == null ? null : master.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * 缓存空对象，防止缓存穿透
+     */
+    private void saveNull(String key) {
+        long ttl = expirePolicy.jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
+        byteRedisTemplate.opsForValue().set(key, NULL_VALUE, ttl, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 热点key加入提前刷新索引并记录访问，超过idle-seconds没有记录的key会被CacheWarmer移出索引
+     */
+    private void touchRefreshAhead(String key, LocalDateTime expireTime) {
+        if (!isRefreshAhead(key) || refreshTouched.getIfPresent(key) != null) {
+            return;
+        }
+        refreshTouched.put(key, Boolean.TRUE);
+        stringRedisTemplate.opsForValue().set(CACHE_REFRESH_TOUCH_KEY + key, "1", refreshIdleSeconds, TimeUnit.SECONDS);
+        stringRedisTemplate.opsForZSet().add(CACHE_REFRESH_INDEX_KEY, key, CacheSerializer.toEpochMilli(expireTime));
+    }
+
+    private void removeRefreshAhead(String key) {
+        stringRedisTemplate.opsForZSet().remove(CACHE_REFRESH_INDEX_KEY, key);
+        stringRedisTemplate.delete(CACHE_REFRESH_TOUCH_KEY + key);
+    }
+
+    private boolean isRefreshAhead(String key) {
+        for (String prefix : refreshAheadPrefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取缓存重建锁，不等待；由看门狗续期到unlock，重建再慢也不会在中途过期
+     * @param key 缓存key
+     * @return 获取失败时返回null
+     */
+    private ILock tryRebuildLock(String key) {
+        ILock lock = redisLockFactory.createLock(LOCK_CACHE_REBUILD_NAME + key);
+        try {
+            return lock.tryLock(0, -1, TimeUnit.SECONDS) ? lock : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
     }
 }
 
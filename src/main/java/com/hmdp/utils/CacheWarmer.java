@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.ShopTypeMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存预热和提前刷新：
+ * 启动时按销量/评论数预热热门店铺和全部店铺类型，分批并行加载，按令牌桶限制对数据库的查询速率；
+ * 之后定时扫描即将逻辑过期的key，在请求读到过期数据之前就完成刷新。
+ * 刷新索引中只有预热的key和读取时成为热点的key，一段时间没有作为热点被读取的key移出索引，之后按物理过期时间自然删除。
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private CacheUtil cacheUtil;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private ShopTypeMapper shopTypeMapper;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.warmup.enabled:true}")
+    private boolean warmupEnabled;
+    @Value("${hmdp.cache.warmup.top-n:1000}")
+    private int topN;
+    @Value("${hmdp.cache.warmup.batch-size:100}")
+    private int batchSize;
+    @Value("${hmdp.cache.warmup.threads:4}")
+    private int threads;
+    // 预热和刷新时每秒最多向数据库发起的查询数
+    @Value("${hmdp.cache.warmup.db-qps:20}")
+    private double dbQps;
+    // 距离逻辑过期不足该时间的key会被提前刷新
+    @Value("${hmdp.cache.refresh.ahead-seconds:60}")
+    private long refreshAheadSeconds;
+    @Value("${hmdp.cache.refresh.batch-size:200}")
+    private int refreshBatchSize;
+
+    private final Map<String, RefreshSpec> refreshSpecs = new ConcurrentHashMap<>();
+    private final AtomicInteger warmupTotal = new AtomicInteger();
+    private final AtomicInteger warmupDone = new AtomicInteger();
+    private TokenBucket dbLimiter;
+    private ExecutorService warmupExecutor;
+
+    @AllArgsConstructor
+    private static class RefreshSpec {
+        private final Function<String, ?> loader;
+        private final long timeOut;
+        private final TimeUnit timeUnit;
+    }
+
+    @PostConstruct
+    public void init() {
+        dbLimiter = new TokenBucket(Math.max(1, (long) dbQps), dbQps);
+        warmupExecutor = Executors.newFixedThreadPool(threads);
+        Gauge.builder("cache.warmup.total", warmupTotal, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("cache.warmup.done", warmupDone, AtomicInteger::get).register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        warmupExecutor.shutdownNow();
+    }
+
+    /**
+     * 注册需要提前刷新的key前缀
+     *
+     * @param keyPrefix key前缀
+     * @param loader    根据key中的id加载最新数据，返回null表示数据已不存在
+     * @param timeOut   逻辑过期时间
+     * @param timeUnit  TimeUnit of timeOut
+     */
+    public void registerRefresh(String keyPrefix, Function<String, ?> loader, long timeOut, TimeUnit timeUnit) {
+        refreshSpecs.put(keyPrefix, new RefreshSpec(loader, timeOut, timeUnit));
+        cacheUtil.enableRefreshAhead(keyPrefix);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!warmupEnabled) {
+            return;
+        }
+        // 预热线程只负责分发批次并等待结果，批次本身在warmupExecutor中并行执行
+        Thread thread = new Thread(this::warmup, "cache-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 预热全部店铺类型和热门店铺
+     */
+    public void warmup() {
+        long begin = System.currentTimeMillis();
+        List<ShopType> shopTypes = shopTypeMapper.selectList(new QueryWrapper<ShopType>().orderByAsc("sort"));
+        cacheUtil.saveObject(CACHE_SHOP_TYPE, shopTypes);
+
+        List<Long> shopIds = shopMapper.selectObjs(new QueryWrapper<Shop>()
+                        .select("id")
+                        .orderByDesc("sold")
+                        .orderByDesc("comments")
+                        .last("limit " + topN))
+                .stream()
+                .map(id -> Long.valueOf(id.toString()))
+                .collect(Collectors.toList());
+        warmupTotal.set(shopIds.size());
+        warmupDone.set(0);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < shopIds.size(); i += batchSize) {
+            List<Long> batch = shopIds.subList(i, Math.min(i + batchSize, shopIds.size()));
+            futures.add(warmupExecutor.submit(() -> warmupShops(batch)));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.error("店铺缓存预热失败", e.getCause());
+            }
+        }
+        log.info("缓存预热完成，店铺类型：{}，店铺：{}/{}，耗时：{}ms", shopTypes.size(),
+                warmupDone.get(), warmupTotal.get(), System.currentTimeMillis() - begin);
+    }
+
+    private void warmupShops(List<Long> ids) {
+        try {
+            dbLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (Shop shop : shopMapper.selectBatchIds(ids)) {
+            cacheUtil.saveObjectWithLogicExpire(CACHE_SHOP_KEY + shop.getId(), shop, CACHE_SHOP_TTL, TimeUnit.MINUTES, true);
+        }
+        int done = warmupDone.addAndGet(ids.size());
+        log.debug("店铺缓存预热进度：{}/{}", done, warmupTotal.get());
+    }
+
+    /**
+     * 刷新即将逻辑过期的key，空闲的key直接移出索引；每个key刷新前都要拿到数据库令牌，拿不到的留到下一轮
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh.interval-ms:10000}")
+    public void refreshAhead() {
+        if (refreshSpecs.isEmpty()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(refreshAheadSeconds);
+        Set<String> keys = stringRedisTemplate.opsForZSet()
+                .rangeByScore(CACHE_REFRESH_INDEX_KEY, 0, deadline, 0, refreshBatchSize);
+        if (keys == null || keys.isEmpty()) {
+            return;
+        }
+        int refreshed = 0;
+        int idle = 0;
+        for (String key : keys) {
+            if (cacheUtil.removeIfIdle(key)) {
+                idle++;
+                continue;
+            }
+            if (!dbLimiter.tryAcquire()) {
+                break;
+            }
+            for (Map.Entry<String, RefreshSpec> entry : refreshSpecs.entrySet()) {
+                if (key.startsWith(entry.getKey())) {
+                    RefreshSpec spec = entry.getValue();
+                    String id = key.substring(entry.getKey().length());
+                    if (cacheUtil.refresh(key, () -> spec.loader.apply(id), spec.timeOut, spec.timeUnit)) {
+                        refreshed++;
+                    }
+                    break;
+                }
+            }
+        }
+        log.debug("提前刷新缓存：{}/{}，移出空闲的key：{}", refreshed, keys.size(), idle);
+    }
+}
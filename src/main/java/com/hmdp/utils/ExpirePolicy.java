@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存过期时间策略，CacheUtil写redis时由它决定实际的TTL
+ */
+public interface ExpirePolicy {
+
+    /**
+     * 为key前缀配置TTL等级
+     *
+     * @param keyPrefix key前缀
+     * @param baseTtl   基础TTL，覆盖调用方传入的TTL
+     * @param maxTtl    自适应延长后的最大TTL
+     * @param timeUnit  TimeUnit of ttl
+     */
+    void registerTier(String keyPrefix, long baseTtl, long maxTtl, TimeUnit timeUnit);
+
+    /**
+     * 计算key实际使用的过期时间
+     *
+     * @param key           缓存key
+     * @param baseTtlMillis 调用方给出的过期时间
+     * @return 实际过期时间，单位毫秒
+     */
+    long ttlMillis(String key, long baseTtlMillis);
+
+    /**
+     * 只对过期时间做随机抖动，不考虑分级和读取次数，用于缓存空对象等场景
+     */
+    long jitter(long ttlMillis);
+
+    /**
+     * 记录一次读取
+     */
+    void recordRead(String key);
+
+    /**
+     * 记录一次数据更新（删除缓存）
+     */
+    void recordUpdate(String key);
+}
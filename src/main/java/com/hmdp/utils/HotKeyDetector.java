@@ -0,0 +1,153 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.HotKeyDTO;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测：用count-min sketch按时间窗口统计key的访问次数，
+ * 单个窗口内访问次数超过阈值的key视为热点，只有热点key才会在本地保存一份短TTL的副本，
+ * 避免单个key的流量全部落到同一个redis分片上，同时又不必把所有数据都缓存在本地。
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 14;
+
+    // 一个窗口内访问次数达到该值即为热点
+    @Value("${hmdp.cache.hot-key.threshold:500}")
+    private long threshold;
+    @Value("${hmdp.cache.hot-key.top-k:20}")
+    private int topK;
+    // 采样率，1表示每次访问都统计
+    @Value("${hmdp.cache.hot-key.sample-rate:1.0}")
+    private double sampleRate;
+    @Value("${hmdp.cache.hot-key.replica-ttl-ms:3000}")
+    private long replicaTtlMillis;
+    @Value("${hmdp.cache.hot-key.replica-size:1000}")
+    private long replicaSize;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private volatile AtomicLongArray sketch = new AtomicLongArray(DEPTH * WIDTH);
+    // 当前窗口内超过阈值的key及其估计值
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+    // 上一个窗口的热点key，热点状态至少保持一个窗口
+    private volatile Set<String> hotKeys = Collections.emptySet();
+    private volatile List<HotKeyDTO> topKeys = Collections.emptyList();
+    private Cache<String, Object> replicas;
+    private long sampleWeight;
+    private Counter replicaHits;
+
+    @PostConstruct
+    public void init() {
+        replicas = Caffeine.newBuilder()
+                .maximumSize(replicaSize)
+                .expireAfterWrite(replicaTtlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        sampleWeight = Math.max(1, Math.round(1 / sampleRate));
+        replicaHits = Counter.builder("cache.hotkey.replica.hit").register(meterRegistry);
+        Gauge.builder("cache.hotkey.count", this, d -> d.hotKeys.size()).register(meterRegistry);
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @return key当前是否为热点
+     */
+    public boolean record(String key) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return hotKeys.contains(key);
+        }
+        long estimate = increment(key, sampleWeight);
+        if (estimate >= threshold) {
+            candidates.merge(key, estimate, Math::max);
+            return true;
+        }
+        return hotKeys.contains(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.contains(key) || candidates.containsKey(key);
+    }
+
+    /**
+     * 读取热点key的本地副本
+     */
+    public Object getReplica(String key) {
+        Object value = replicas.getIfPresent(key);
+        if (value != null) {
+            replicaHits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * 只有热点key才会保存本地副本
+     */
+    public void putReplica(String key, Object value) {
+        if (value != null && isHot(key)) {
+            replicas.put(key, value);
+        }
+    }
+
+    public void invalidate(String key) {
+        replicas.invalidate(key);
+    }
+
+    public List<HotKeyDTO> topKeys() {
+        return topKeys;
+    }
+
+    /**
+     * 窗口结束：汇总热点key，重置计数
+     */
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.window-ms:1000}")
+    public void rotate() {
+        Map<String, Long> snapshot = new HashMap<>(candidates);
+        sketch = new AtomicLongArray(DEPTH * WIDTH);
+        candidates.clear();
+        hotKeys = snapshot.isEmpty() ? Collections.emptySet() : new HashSet<>(snapshot.keySet());
+        topKeys = snapshot.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(topK)
+                .map(e -> new HotKeyDTO(e.getKey(), e.getValue()))
+                .collect(Collectors.toList());
+        if (!snapshot.isEmpty()) {
+            log.info("探测到热点key：{}", topKeys);
+        }
+    }
+
+    private long increment(String key, long delta) {
+        AtomicLongArray table = sketch;
+        long hash = MurmurHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = (h1 + i * h2) & (WIDTH - 1);
+            min = Math.min(min, table.addAndGet(i * WIDTH + index, delta));
+        }
+        return min;
+    }
+}
@@ -0,0 +1,9 @@
+package com.hmdp.utils;
+
+
+public interface IBloomFilter {
+
+    boolean mightContain(String value);
+
+    void put(String value);
+}
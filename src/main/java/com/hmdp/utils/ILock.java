@@ -1,9 +1,25 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
 
 public interface ILock {
 
+    /**
+     * 非阻塞加锁，同一线程可重入
+     * @param timeoutSeconds 锁的过期时间
+     */
     boolean tryLock(long timeoutSeconds);
 
+    /**
+     * 阻塞加锁，锁被占用时等待解锁通知，同一线程可重入
+     * @param waitTime  最长等待时间，<=0时不等待
+     * @param leaseTime 锁的过期时间，<=0时由看门狗自动续期，直到unlock
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * 释放一次重入，重入次数减到0时删除锁
+     * @throws IllegalMonitorStateException 锁不属于当前线程，包括锁已经过期
+     */
     void unlock();
 }
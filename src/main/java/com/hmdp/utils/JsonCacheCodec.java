@@ -0,0 +1,39 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 原有的Hutool JSON格式，写入的是不带帧头的纯json字符串，与旧数据完全兼容
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final String NAME = "json";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte id() {
+        return 1;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> clazz) {
+        return JSONUtil.toBean(new String(bytes, offset, length, StandardCharsets.UTF_8), clazz);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, int offset, int length, Class<T> clazz) {
+        return JSONUtil.toList(new String(bytes, offset, length, StandardCharsets.UTF_8), clazz);
+    }
+}
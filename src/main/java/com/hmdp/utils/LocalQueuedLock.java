@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 先获取本节点上同名的本地锁，再获取分布式锁。同一节点上争抢同一把锁的线程在本地排队，
+ * 只有拿到本地锁的线程才会访问redis；本地锁按锁名区分，持有期间不会挡住其他锁名，同一线程内可重入。
+ */
+public class LocalQueuedLock implements ILock {
+
+    private final String name;
+    private final RedisLockFactory lockFactory;
+    private final ILock delegate;
+
+    public LocalQueuedLock(String name, RedisLockFactory lockFactory, ILock delegate) {
+        this.name = name;
+        this.lockFactory = lockFactory;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSeconds) {
+        RedisLockFactory.LocalLock local = lockFactory.retainLocal(name);
+        boolean locked = false;
+        try {
+            if (!local.tryLock()) {
+                lockFactory.recordContended();
+                return false;
+            }
+            try {
+                locked = delegate.tryLock(timeoutSeconds);
+                return locked;
+            } finally {
+                if (!locked) {
+                    local.unlock();
+                }
+            }
+        } finally {
+            if (!locked) {
+                lockFactory.releaseLocal(name, local);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long waitNanos = Math.max(0, unit.toNanos(waitTime));
+        long deadline = System.nanoTime() + waitNanos;
+        RedisLockFactory.LocalLock local = lockFactory.retainLocal(name);
+        boolean locked = false;
+        try {
+            if (!local.tryLock()) {
+                lockFactory.recordContended();
+                if (!local.tryLock(waitNanos, TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                locked = delegate.tryLock(remaining, leaseTime > 0 ? unit.toNanos(leaseTime) : leaseTime, TimeUnit.NANOSECONDS);
+                return locked;
+            } finally {
+                if (!locked) {
+                    local.unlock();
+                }
+            }
+        } finally {
+            if (!locked) {
+                lockFactory.releaseLocal(name, local);
+            }
+        }
+    }
+
+    @Override
+    public void unlock() {
+        RedisLockFactory.LocalLock local = lockFactory.getLocal(name);
+        if (local == null || !local.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("本地锁不属于当前线程，锁名：" + name);
+        }
+        try {
+            delegate.unlock();
+        } finally {
+            local.unlock();
+            lockFactory.releaseLocal(name, local);
+        }
+    }
+}
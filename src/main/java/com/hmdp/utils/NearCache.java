@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * 进程内一级缓存（L1），按key前缀划分，每个前缀单独限制容量和TTL。
+ * 删除redis缓存时通过pub/sub广播key，所有节点收到后清除本地副本。
+ */
+@Slf4j
+@Component
+public class NearCache implements MessageListener {
+
+    private final Map<String, Cache<String, Object>> caches = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 为某个key前缀开启本地缓存
+     *
+     * @param keyPrefix   key前缀
+     * @param maximumSize 最多缓存的条目数
+     * @param ttl         写入后的存活时间，兜底pub/sub消息丢失的情况
+     * @param timeUnit    TimeUnit of ttl
+     */
+    public void register(String keyPrefix, long maximumSize, long ttl, TimeUnit timeUnit) {
+        caches.computeIfAbsent(keyPrefix, p -> Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, timeUnit)
+                .build());
+    }
+
+    public boolean isEnabled(String keyPrefix) {
+        return caches.containsKey(keyPrefix);
+    }
+
+    public Object get(String keyPrefix, String key) {
+        Cache<String, Object> cache = caches.get(keyPrefix);
+        return cache == null ? null : cache.getIfPresent(key);
+    }
+
+    public void put(String keyPrefix, String key, Object value) {
+        Cache<String, Object> cache = caches.get(keyPrefix);
+        if (cache != null && value != null) {
+            cache.put(key, value);
+        }
+    }
+
+    /**
+     * 只清除当前节点的本地副本（包括热点key副本）
+     */
+    public void invalidateLocal(String key) {
+        for (Cache<String, Object> cache : caches.values()) {
+            cache.invalidate(key);
+        }
+        hotKeyDetector.invalidate(key);
+    }
+
+    /**
+     * 清除本地副本并通知其他节点
+     */
+    public void invalidate(String key) {
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("收到缓存失效通知，key：{}", key);
+        invalidateLocal(key);
+    }
+}
@@ -0,0 +1,165 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_TTL;
+
+/**
+ * 秒杀订单状态：QUEUED -> PERSISTED / FAILED。
+ * 状态保存在按下单时间的小时分桶的redis hash中，field为订单id，value为一个字符的状态码；
+ * 下单用户保存在 订单id:user 字段中，查询时只返回自己的订单。
+ * 订单处理完成后通过pub/sub广播，等待该订单的长轮询或SSE连接无论在哪个节点上都能立即收到结果。
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 本节点上等待订单结果的回调，orderId -> callbacks
+    private final Map<Long, Set<Consumer<OrderStatus>>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 秒杀成功、订单进入队列，已经处理完的订单不会被覆盖
+     */
+    public void queued(Long orderId, Long userId) {
+        String key = key(orderId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hSetNX(key, orderId.toString(), OrderStatus.QUEUED.getCode());
+            conn.hSetNX(key, ownerField(orderId), userId.toString());
+            conn.expire(key, TimeUnit.HOURS.toSeconds(ORDER_STATUS_TTL));
+            return null;
+        });
+    }
+
+    public void persisted(Collection<Long> orderIds) {
+        finish(orderIds, OrderStatus.PERSISTED);
+    }
+
+    public void failed(Collection<Long> orderIds) {
+        finish(orderIds, OrderStatus.FAILED);
+    }
+
+    public void failed(Long orderId) {
+        finish(Collections.singletonList(orderId), OrderStatus.FAILED);
+    }
+
+    public OrderStatus get(Long orderId) {
+        Object code = stringRedisTemplate.opsForHash().get(key(orderId), orderId.toString());
+        return code == null ? null : OrderStatus.of(code.toString());
+    }
+
+    /**
+     * 查询用户自己的订单状态，订单不存在或者不属于该用户时返回null
+     */
+    public OrderStatus get(Long orderId, Long userId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(key(orderId), Arrays.asList(orderId.toString(), ownerField(orderId)));
+        Object code = values.get(0);
+        Object owner = values.get(1);
+        if (code == null || owner == null || !owner.toString().equals(userId.toString())) {
+            return null;
+        }
+        return OrderStatus.of(code.toString());
+    }
+
+    /**
+     * 等待订单处理完成，已经完成时立即回调
+     *
+     * @return 用于取消等待的句柄
+     */
+    public Runnable await(Long orderId, Consumer<OrderStatus> callback) {
+        Set<Consumer<OrderStatus>> callbacks = waiters.computeIfAbsent(orderId, id -> new CopyOnWriteArraySet<>());
+        callbacks.add(callback);
+        Runnable cancel = () -> waiters.computeIfPresent(orderId, (id, set) -> {
+            set.remove(callback);
+            return set.isEmpty() ? null : set;
+        });
+        // 注册之后再查一次，避免查询和注册之间完成的通知被错过
+        OrderStatus status = get(orderId);
+        if (status != null && status.isFinished()) {
+            cancel.run();
+            callback.accept(status);
+        }
+        return cancel;
+    }
+
+    private void finish(Collection<Long> orderIds, OrderStatus status) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        Map<String, Map<String, String>> byKey = orderIds.stream().collect(Collectors.groupingBy(this::key,
+                Collectors.toMap(Object::toString, id -> status.getCode(), (a, b) -> b)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            byKey.forEach((key, fields) -> {
+                conn.hMSet(key, fields);
+                conn.expire(key, TimeUnit.HOURS.toSeconds(ORDER_STATUS_TTL));
+            });
+            return null;
+        });
+        // 消息格式：状态码:订单id,订单id...
+        String ids = orderIds.stream().map(Object::toString).collect(Collectors.joining(","));
+        stringRedisTemplate.convertAndSend(ORDER_STATUS_CHANNEL, status.getCode() + ":" + ids);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.indexOf(':');
+        OrderStatus status = OrderStatus.of(body.substring(0, i));
+        for (String id : body.substring(i + 1).split(",")) {
+            Set<Consumer<OrderStatus>> callbacks = waiters.remove(Long.valueOf(id));
+            if (callbacks != null) {
+                callbacks.forEach(callback -> callback.accept(status));
+            }
+        }
+    }
+
+    private String key(Long orderId) {
+        // 按id中记录的下单时间分桶，雪花id和redis自增id的时间位置不同
+        return ORDER_STATUS_KEY + RedisIDGenerator.secondsOf(orderId) / 3600;
+    }
+
+    private static String ownerField(Long orderId) {
+        return orderId + ":user";
+    }
+}
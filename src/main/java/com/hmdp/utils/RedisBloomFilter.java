@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import org.redisson.api.RBloomFilter;
+
+/**
+ * 基于redis bitmap（Redisson RBloomFilter）的布隆过滤器，所有节点共享同一份数据
+ */
+public class RedisBloomFilter implements IBloomFilter {
+
+    private final RBloomFilter<String> bloomFilter;
+
+    public RedisBloomFilter(RBloomFilter<String> bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+
+    @Override
+    public boolean mightContain(String value) {
+        return bloomFilter.contains(value);
+    }
+
+    @Override
+    public void put(String value) {
+        bloomFilter.add(value);
+    }
+}
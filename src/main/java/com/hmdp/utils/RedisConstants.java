@@ -9,17 +9,50 @@ public class RedisConstants {
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
+    public static final Long CACHE_SHOP_MAX_TTL = 120L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE = "cache:shopType:";
+    public static final Long CACHE_SHOP_LOCAL_SIZE = 10000L;
+    public static final Long CACHE_SHOP_LOCAL_TTL = 30L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_CHANNEL = "bloom:put";
+    public static final String CACHE_REFRESH_INDEX_KEY = "cache:refresh:index";
+    public static final String CACHE_REFRESH_TOUCH_KEY = "cache:refresh:touch:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_REBUILD_NAME = "cache:rebuild:";
+    public static final String LOCK_CACHE_OUTBOX_NAME = "cache:outbox";
+    public static final String LOCK_CACHE_LOAD_NAME = "cache:load:";
+    public static final String LOCK_SECKILL_RECONCILE_NAME = "seckill:reconcile";
+    public static final String LOCK_BLOOM_REFRESH_NAME = "bloom:refresh";
+    public static final String LOCK_CHANNEL = "lock:channel:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String SECKILL_MAP_KEY = "seckill:map:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_ID_KEY = "seckill:orderId:";
+    public static final String SECKILL_RESERVED_KEY = "seckill:reserved:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "{stream.orders}";
+    public static final String SECKILL_ORDER_STREAM_PREFIX = "stream.orders:";
+    public static final String SECKILL_ORDER_STREAMS_KEY = "stream.orders:keys";
+    public static final String SECKILL_ORDER_DEAD_STREAM_KEY = "{stream.orders}.dead";
+    public static final String LEGACY_SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String LEGACY_SECKILL_ORDER_DEAD_STREAM_KEY = "stream.orders.dead";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 24L;
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_LIMIT_KEY = "limit:seckill:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final Long HOT_LIKED_REPLICA_MAX_SIZE = 10000L;
     public static final String FOLLOW_KEY = "follow:user:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String ID_WORKER_KEY = "id:worker:";
 }
@@ -1,51 +1,120 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import cn.hutool.core.util.BooleanUtil;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.data.redis.core.script.RedisScript;
-import org.springframework.stereotype.Component;
 
 import java.util.Collections;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.LOCK_CHANNEL;
+
+/**
+ * 基于redis hash的可重入锁，field为持有者（节点前缀+线程id），value为重入次数。
+ * 未指定过期时间时由RedisLockFactory的看门狗续期；等待锁时订阅解锁通知，不轮询。
+ */
 public class RedisDistributedLock implements ILock{
 
     private String name;
     private StringRedisTemplate redisTemplate;
+    private RedisLockFactory lockFactory;
     private static final String keyPrefix = "lock:";
     private static final String idPrefix = UUID.randomUUID().toString(true) + "-";
 
+    private static DefaultRedisScript<Long> LOCK_SCRIPT;
     private static DefaultRedisScript<Long> UNLOCK_SCRIPT;
     static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setResultType(Long.class);
+        LOCK_SCRIPT.setLocation(new ClassPathResource("lock.lua"));
         UNLOCK_SCRIPT = new DefaultRedisScript<>();
         UNLOCK_SCRIPT.setResultType(Long.class);
         UNLOCK_SCRIPT.setLocation(new ClassPathResource("unLock.lua"));
     }
 
-    public RedisDistributedLock(String name, StringRedisTemplate redisTemplate) {
+    public RedisDistributedLock(String name, StringRedisTemplate redisTemplate, RedisLockFactory lockFactory) {
         this.name = name;
         this.redisTemplate = redisTemplate;
+        this.lockFactory = lockFactory;
     }
 
     @Override
     public boolean tryLock(long timeoutSeconds) {
-        String lockKey = keyPrefix + name;
-        String value = idPrefix + Thread.currentThread().getId();
-        Boolean b = redisTemplate.opsForValue().setIfAbsent(lockKey, value, timeoutSeconds, TimeUnit.SECONDS);
-        return Boolean.TRUE.equals(b);
-//        return BooleanUtil.isTrue(b);
+        return acquire(TimeUnit.SECONDS.toMillis(timeoutSeconds)) == null;
     }
 
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        boolean watchdog = leaseTime <= 0;
+        long leaseMillis = watchdog ? lockFactory.getWatchdogTimeout() : unit.toMillis(leaseTime);
+        long deadline = System.currentTimeMillis() + Math.max(0, unit.toMillis(waitTime));
+        Long ttl = acquire(leaseMillis);
+        if (ttl == null) {
+            return locked(watchdog);
+        }
+        if (waitTime <= 0) {
+            return false;
+        }
+        String lockKey = keyPrefix + name;
+        RedisLockFactory.Waiter waiter = lockFactory.subscribe(lockKey);
+        try {
+            while (true) {
+                // 登记等待后再试一次，避免错过登记之前发出的解锁通知
+                ttl = acquire(leaseMillis);
+                if (ttl == null) {
+                    return locked(watchdog);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 最多等到锁过期，持有者宕机没有发出通知时也能及时重试
+                waiter.await(ttl > 0 ? Math.min(ttl, remaining) : remaining);
+            }
+        } finally {
+            lockFactory.unsubscribe(lockKey, waiter);
+        }
+    }
 
     @Override
     public void unlock() {
-        redisTemplate.execute(UNLOCK_SCRIPT,
+        String lockKey = keyPrefix + name;
+        Long res = null;
+        try {
+            res = redisTemplate.execute(UNLOCK_SCRIPT,
+                    Collections.singletonList(lockKey),
+                    owner(), LOCK_CHANNEL + name
+            );
+        } finally {
+            // 只有确认仍被重入持有时才继续续期；已释放、锁已不属于自己或者解锁出错时都停止续期，避免续期一把不再持有的锁
+            if (res == null || res != 0) {
+                lockFactory.cancelRenewal(lockKey, owner());
+            }
+        }
+        if (res == null) {
+            throw new IllegalMonitorStateException("锁不属于当前线程，key：" + lockKey);
+        }
+    }
+
+    /**
+     * @return null表示加锁成功，否则为锁的剩余毫秒数
+     */
+    private Long acquire(long leaseMillis) {
+        return redisTemplate.execute(LOCK_SCRIPT,
                 Collections.singletonList(keyPrefix + name),
-                idPrefix + Thread.currentThread().getId()
+                String.valueOf(leaseMillis), owner()
         );
     }
+
+    private boolean locked(boolean watchdog) {
+        if (watchdog) {
+            lockFactory.scheduleRenewal(keyPrefix + name, owner());
+        }
+        return true;
+    }
+
+    private String owner() {
+        return idPrefix + Thread.currentThread().getId();
+    }
 }
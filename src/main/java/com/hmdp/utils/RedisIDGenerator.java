@@ -1,29 +1,203 @@
 package com.hmdp.utils;
 
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局唯一id：高31位是相对BEGIN_TIMESTAMP的秒数，低32位是当天的序列号，序列号按前缀和日期保存在icr:{prefix}{yyyy:MM:dd}中。
+ * <ul>
+ *     <li>incr：每个id执行一次INCR</li>
+ *     <li>segment：每次用INCRBY领取segment-size个序列号，在内存中无锁发放，
+ *     当前号段剩余不足prefetch-ratio时由后台线程提前领取下一个号段</li>
+ * </ul>
+ * 两种模式使用同一个计数器，可以随时切换；segment模式下的id在节点之间不再严格递增。
+ * hmdp.id.snowflake.prefixes中的前缀不使用redis，交给SnowflakeIDGenerator在进程内生成。
+ */
+@Slf4j
 @Component
 @RequiredArgsConstructor
 public class RedisIDGenerator {
 
     private static final long BEGIN_TIMESTAMP = 1704067200L;
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
 
     private final StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SnowflakeIDGenerator snowflakeIDGenerator;
+
+    @Value("${hmdp.id.mode:incr}")
+    private String mode = "incr";
+    @Value("${hmdp.id.segment-size:1000}")
+    private int segmentSize = 1000;
+    @Value("${hmdp.id.prefetch-ratio:0.2}")
+    private double prefetchRatio = 0.2;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    public void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
 
     public long nextId(String prefix) {
-        LocalDateTime now = LocalDateTime.now();
-        long nowEpochSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timeStamp = nowEpochSecond - BEGIN_TIMESTAMP;
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long l = stringRedisTemplate.opsForValue().increment("icr:" + prefix + date);
-        return timeStamp << COUNT_BITS | l;
+        if (snowflakeIDGenerator != null && snowflakeIDGenerator.supports(prefix)) {
+            return snowflakeIDGenerator.nextId();
+        }
+        // 与LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)相同：本地时间按UTC换算的秒数
+        long millis = System.currentTimeMillis();
+        long localSecond = millis / 1000 + ZONE.getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+        long timeStamp = localSecond - BEGIN_TIMESTAMP;
+        long day = Math.floorDiv(localSecond, SECONDS_PER_DAY);
+        long sequence;
+        if ("segment".equals(mode)) {
+            sequence = buffers.computeIfAbsent(prefix, SegmentBuffer::new).next(day);
+        } else {
+            sequence = stringRedisTemplate.opsForValue().increment(counterKey(prefix, day));
+        }
+        return timeStamp << COUNT_BITS | sequence;
+    }
+
+    /**
+     * 该前缀的id是否在进程内发放：雪花id，或者segment模式下从已领取的号段中发放，绝大多数id不需要访问redis
+     */
+    public boolean isLocal(String prefix) {
+        return (snowflakeIDGenerator != null && snowflakeIDGenerator.supports(prefix)) || "segment".equals(mode);
+    }
+
+    /**
+     * id中记录的生成时间，相对起始时间的秒数；雪花id按它自己的布局解析，两种id的起始时间相同
+     */
+    public static long secondsOf(long id) {
+        if (SnowflakeIDGenerator.isSnowflakeId(id)) {
+            return SnowflakeIDGenerator.millisOf(id) / 1000;
+        }
+        return id >>> COUNT_BITS;
+    }
+
+    private static String counterKey(String prefix, long day) {
+        return "icr:" + prefix + LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+    }
+
+    /**
+     * 一个号段：[start, end]，只属于领取时的那一天，跨天后作废，否则会和新一天的序列号重复
+     */
+    private static class Segment {
+        private final long day;
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(long day, long start, long end, long prefetchAt) {
+            this.day = day;
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 每个前缀一个双缓冲：current正在发放，next是后台提前领取的号段
+     */
+    private class SegmentBuffer {
+        private final String prefix;
+        private final AtomicBoolean loading = new AtomicBoolean();
+        private volatile Segment current;
+        private volatile Segment next;
+
+        SegmentBuffer(String prefix) {
+            this.prefix = prefix;
+        }
+
+        long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    long sequence = segment.cursor.getAndIncrement();
+                    if (sequence <= segment.end) {
+                        // 每个号段只有一个线程会拿到这个序列号，恰好触发一次预取
+                        if (sequence == segment.prefetchAt) {
+                            prefetch(day);
+                        }
+                        return sequence;
+                    }
+                }
+                switchSegment(segment, day);
+            }
+        }
+
+        /**
+         * 当前号段用完或跨天时切换，预取的号段不可用时同步领取
+         */
+        private synchronized void switchSegment(Segment exhausted, long day) {
+            if (current != exhausted) {
+                return;
+            }
+            Segment segment = next;
+            next = null;
+            if (segment == null || segment.day != day) {
+                segment = load(day);
+            }
+            current = segment;
+        }
+
+        private void prefetch(long day) {
+            if (!loading.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                prefetchExecutor.execute(() -> {
+                    try {
+                        Segment segment = load(day);
+                        synchronized (this) {
+                            if (next == null) {
+                                next = segment;
+                            }
+                        }
+                    } catch (Exception e) {
+                        log.warn("预取id号段失败，前缀：{}", prefix, e);
+                    } finally {
+                        loading.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                loading.set(false);
+                log.warn("提交id号段预取任务失败，前缀：{}", prefix, e);
+            }
+        }
+
+        private Segment load(long day) {
+            int size = Math.max(1, segmentSize);
+            Long end = stringRedisTemplate.opsForValue().increment(counterKey(prefix, day), size);
+            if (end == null) {
+                throw new IllegalStateException("领取id号段失败，前缀：" + prefix);
+            }
+            long start = end - size + 1;
+            long prefetchAt = end - (long) (size * prefetchRatio);
+            return new Segment(day, start, end, Math.max(start, prefetchAt));
+        }
     }
 }
@@ -1,16 +1,203 @@
 package com.hmdp.utils;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.hmdp.utils.RedisConstants.LOCK_CHANNEL;
+
+/**
+ * 创建RedisDistributedLock，并提供所有锁共用的看门狗线程和解锁通知：
+ * 整个节点只订阅一次lock:channel:*，收到通知后唤醒本节点等待同一把锁的一个线程。
+ * createLocalQueuedLock在分布式锁前面加一层按锁名区分的本地锁，没有线程持有或等待时从map中移除；
+ * 本地锁的争抢次数和数量记录在lock.local.contended、lock.local.size中。
+ */
+@Slf4j
 @Component
 @RequiredArgsConstructor
-public class RedisLockFactory {
+public class RedisLockFactory implements MessageListener {
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renewLock.lua"));
+    }
 
     private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 看门狗模式下的锁过期时间，每1/3续期一次
+    @Value("${hmdp.lock.watchdog-timeout-ms:30000}")
+    private long watchdogTimeout = 30000;
+
+    // 锁名 -> 本节点的本地锁
+    private final Map<String, LocalLock> localLocks = new ConcurrentHashMap<>();
+    private final AtomicLong localContended = new AtomicLong();
+
+    // lockKey -> 本节点正在等待这把锁的线程
+    private final Map<String, Waiter> waiters = new ConcurrentHashMap<>();
+    // lockKey:owner -> 续期任务
+    private final Map<String, ScheduledFuture<?>> renewals = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        if (meterRegistry != null) {
+            FunctionCounter.builder("lock.local.contended", localContended, AtomicLong::get)
+                    .register(meterRegistry);
+            Gauge.builder("lock.local.size", localLocks, Map::size)
+                    .register(meterRegistry);
+        }
+        redisMessageListenerContainer.addMessageListener(this, new PatternTopic(LOCK_CHANNEL + "*"));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        watchdog.shutdownNow();
+    }
 
     public RedisDistributedLock createLock(String name) {
-        return new RedisDistributedLock(name, redisTemplate);
+        return new RedisDistributedLock(name, redisTemplate, this);
+    }
+
+    /**
+     * 先在本节点同名的本地锁上排队，拿到后再获取分布式锁
+     */
+    public ILock createLocalQueuedLock(String name) {
+        return new LocalQueuedLock(name, this, createLock(name));
+    }
+
+    /**
+     * 取得锁名对应的本地锁并增加引用，每次调用都要有一次releaseLocal
+     */
+    LocalLock retainLocal(String name) {
+        return localLocks.compute(name, (k, local) -> {
+            LocalLock l = local == null ? new LocalLock() : local;
+            l.refs++;
+            return l;
+        });
+    }
+
+    void releaseLocal(String name, LocalLock local) {
+        localLocks.computeIfPresent(name, (k, l) -> l == local && --l.refs == 0 ? null : l);
+    }
+
+    LocalLock getLocal(String name) {
+        return localLocks.get(name);
+    }
+
+    void recordContended() {
+        localContended.incrementAndGet();
+    }
+
+    long getWatchdogTimeout() {
+        return watchdogTimeout;
+    }
+
+    void scheduleRenewal(String lockKey, String owner) {
+        // 重入时已经有续期任务，不重复创建
+        renewals.computeIfAbsent(lockKey + ":" + owner, k -> {
+            long period = Math.max(1, watchdogTimeout / 3);
+            return watchdog.scheduleWithFixedDelay(() -> renew(lockKey, owner), period, period, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    void cancelRenewal(String lockKey, String owner) {
+        ScheduledFuture<?> future = renewals.remove(lockKey + ":" + owner);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private void renew(String lockKey, String owner) {
+        try {
+            Long res = redisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(lockKey),
+                    String.valueOf(watchdogTimeout), owner);
+            if (res == null || res == 0) {
+                log.warn("锁已经不属于当前持有者，停止续期，key：{}", lockKey);
+                cancelRenewal(lockKey, owner);
+            }
+        } catch (Exception e) {
+            // 下一次续期前锁还不会过期，继续重试
+            log.warn("锁续期失败，key：{}", lockKey, e);
+        }
+    }
+
+    Waiter subscribe(String lockKey) {
+        return waiters.compute(lockKey, (k, waiter) -> {
+            Waiter w = waiter == null ? new Waiter() : waiter;
+            w.count.incrementAndGet();
+            return w;
+        });
+    }
+
+    void unsubscribe(String lockKey, Waiter waiter) {
+        waiters.computeIfPresent(lockKey, (k, w) -> w == waiter && w.count.decrementAndGet() == 0 ? null : w);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String lockKey = new String(message.getBody(), StandardCharsets.UTF_8);
+        Waiter waiter = waiters.get(lockKey);
+        if (waiter != null) {
+            waiter.signal();
+        }
+    }
+
+    /**
+     * 同一把锁在本节点的等待者，每次解锁通知唤醒一个线程，没抢到锁的线程继续等待
+     */
+    static class Waiter {
+        private final AtomicInteger count = new AtomicInteger();
+        private final Semaphore semaphore = new Semaphore(0);
+
+        void await(long millis) throws InterruptedException {
+            semaphore.tryAcquire(millis, TimeUnit.MILLISECONDS);
+        }
+
+        void signal() {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * 本地锁，refs为持有和等待的次数，只在localLocks的compute中修改
+     */
+    static class LocalLock extends ReentrantLock {
+        private int refs;
     }
 }
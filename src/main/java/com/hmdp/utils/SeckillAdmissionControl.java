@@ -0,0 +1,137 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀准入控制，三层令牌桶：
+ * 1. 每个用户一个本地令牌桶，拦截单个用户的连点和脚本刷单；
+ * 2. 每张券一个本地令牌桶，限制本节点放到redis的请求量，令牌耗尽时按策略直接拒绝或短暂排队，不访问redis；
+ * 3. 本地放行后再经过redis中的集群令牌桶，限制所有节点合计的请求量（cluster-voucher-qps<=0时关闭）。
+ */
+@Slf4j
+@Component
+public class SeckillAdmissionControl {
+
+    public enum Decision {
+        ADMITTED, USER_LIMITED, BUSY
+    }
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rateLimit.lua"));
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.admission.user-qps:1}")
+    private double userQps;
+    @Value("${hmdp.seckill.admission.user-burst:2}")
+    private long userBurst;
+    @Value("${hmdp.seckill.admission.voucher-qps:2000}")
+    private double voucherQps;
+    @Value("${hmdp.seckill.admission.voucher-burst:2000}")
+    private long voucherBurst;
+    @Value("${hmdp.seckill.admission.cluster-voucher-qps:0}")
+    private double clusterVoucherQps;
+    @Value("${hmdp.seckill.admission.cluster-voucher-burst:0}")
+    private long clusterVoucherBurst;
+    // reject：本地令牌耗尽立即拒绝；queue：最多等待queue-timeout-ms
+    @Value("${hmdp.seckill.admission.policy:reject}")
+    private String policy;
+    @Value("${hmdp.seckill.admission.queue-timeout-ms:200}")
+    private long queueTimeoutMillis;
+    @Value("${hmdp.seckill.admission.max-queue:200}")
+    private int maxQueue;
+
+    private Cache<Long, TokenBucket> userBuckets;
+    private Cache<Long, TokenBucket> voucherBuckets;
+    private Semaphore queueSlots;
+
+    @PostConstruct
+    public void init() {
+        userBuckets = Caffeine.newBuilder()
+                .maximumSize(100000)
+                .expireAfterAccess(1, TimeUnit.MINUTES)
+                .build();
+        voucherBuckets = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build();
+        queueSlots = new Semaphore(maxQueue);
+    }
+
+    public Decision tryAdmit(Long userId, Long voucherId) {
+        if (!enabled) {
+            return Decision.ADMITTED;
+        }
+        TokenBucket userBucket = userBuckets.get(userId, id -> new TokenBucket(userBurst, userQps));
+        if (!userBucket.tryAcquire()) {
+            return reject("user");
+        }
+        TokenBucket voucherBucket = voucherBuckets.get(voucherId, id -> new TokenBucket(voucherBurst, voucherQps));
+        if (!voucherBucket.tryAcquire() && !awaitToken(voucherBucket)) {
+            return reject("voucher");
+        }
+        if (clusterVoucherQps > 0 && !tryAcquireCluster(voucherId)) {
+            return reject("cluster");
+        }
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * queue策略下在有限的排队名额内等待令牌，名额用完直接拒绝
+     */
+    private boolean awaitToken(TokenBucket bucket) {
+        if (!"queue".equals(policy) || !queueSlots.tryAcquire()) {
+            return false;
+        }
+        try {
+            return bucket.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            queueSlots.release();
+        }
+    }
+
+    private boolean tryAcquireCluster(Long voucherId) {
+        long burst = clusterVoucherBurst > 0 ? clusterVoucherBurst : (long) Math.ceil(clusterVoucherQps);
+        Long allowed = stringRedisTemplate.execute(
+                RATE_LIMIT_SCRIPT,
+                Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                String.valueOf(clusterVoucherQps),
+                String.valueOf(burst),
+                "1"
+        );
+        return allowed != null && allowed == 1;
+    }
+
+    private Decision reject(String reason) {
+        meterRegistry.counter("seckill.admission.rejected", "reason", reason).increment();
+        return "user".equals(reason) ? Decision.USER_LIMITED : Decision.BUSY;
+    }
+}
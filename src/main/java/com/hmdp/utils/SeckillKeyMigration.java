@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券的库存hash、下单用户集合和订单stream改为带hash tag的key之后，启动时把旧名字的key改名过来，
+ * 正在进行的秒杀和未确认的订单消息不会丢失。RENAME不能跨slot，只在单机和哨兵模式下执行；
+ * 切换到集群之前需要先在原来的部署上完成一次迁移。新旧key同时存在时保留新key。
+ */
+@Slf4j
+@Component
+public class SeckillKeyMigration {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${spring.redis.cluster.nodes:}")
+    private String clusterNodes = "";
+
+    @PostConstruct
+    public void migrate() {
+        if (!clusterNodes.isEmpty()) {
+            return;
+        }
+        int migrated = migrateVoucherKeys(SECKILL_MAP_KEY, SeckillStockSegments::mapKey)
+                + migrateVoucherKeys(SECKILL_ORDER_KEY, SeckillStockSegments::orderKey);
+        if (rename(LEGACY_SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_STREAM_KEY)) {
+            migrated++;
+        }
+        if (rename(LEGACY_SECKILL_ORDER_DEAD_STREAM_KEY, SECKILL_ORDER_DEAD_STREAM_KEY)) {
+            migrated++;
+        }
+        if (migrated > 0) {
+            log.info("秒杀key已迁移为带hash tag的名字，数量：{}", migrated);
+        }
+    }
+
+    /**
+     * 旧key是 前缀 + 券id，分段券和已迁移的key带有{}，不会被匹配
+     */
+    private int migrateVoucherKeys(String prefix, Function<Long, String> newKey) {
+        List<String> legacyKeys = stringRedisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            List<String> keys = new ArrayList<>();
+            try (Cursor<byte[]> cursor = connection.scan(ScanOptions.scanOptions().match(prefix + "*").count(1000).build())) {
+                cursor.forEachRemaining(bytes -> {
+                    String key = new String(bytes, StandardCharsets.UTF_8);
+                    if (key.substring(prefix.length()).matches("\\d+")) {
+                        keys.add(key);
+                    }
+                });
+            } catch (IOException e) {
+                log.warn("关闭SCAN游标失败，前缀：{}", prefix, e);
+            }
+            return keys;
+        });
+        int migrated = 0;
+        for (String key : legacyKeys) {
+            if (rename(key, newKey.apply(Long.valueOf(key.substring(prefix.length()))))) {
+                migrated++;
+            }
+        }
+        return migrated;
+    }
+
+    private boolean rename(String oldKey, String newKey) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(oldKey))) {
+            return false;
+        }
+        if (Boolean.TRUE.equals(stringRedisTemplate.renameIfAbsent(oldKey, newKey))) {
+            return true;
+        }
+        log.warn("新key已存在，保留旧key等待人工处理，旧key：{}，新key：{}", oldKey, newKey);
+        return false;
+    }
+}
@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.connection.PublisherCallbackChannel;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.config.MqConfig.SECKILL_EXCHANGE;
+import static com.hmdp.config.MqConfig.SECKILL_ROUTING_KEY;
+
+/**
+ * 带发布确认的秒杀订单发送：
+ * 每条订单发送前放入本地重发缓冲区，收到broker的ack后移除；
+ * 发送异常、nack、无法路由被退回或超时未确认的订单由定时任务重发，避免broker背压时静默丢单。
+ * 关联id为 订单id:发送次数，旧的发送收到的确认或退回不会影响重发后的状态。
+ * 缓冲区最多保存max-in-flight条订单，broker长时间不可用时缓冲区满了就拒绝新的订单，由调用方归还已扣减的库存，
+ * 不会无限增长直到内存耗尽。
+ */
+@Slf4j
+@Component
+public class SeckillOrderPublisher {
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 超过该时间未收到确认的订单会被重发
+    @Value("${hmdp.seckill.order.confirm-timeout-ms:5000}")
+    private long confirmTimeoutMillis;
+    // 重发缓冲区的容量
+    @Value("${hmdp.seckill.order.max-in-flight:100000}")
+    private int maxInFlight;
+
+    private final Map<String, Pending> inFlight = new ConcurrentHashMap<>();
+    private Counter confirmedCounter;
+    private Counter retriedCounter;
+    private Counter returnedCounter;
+    private Counter rejectedCounter;
+
+    private static class Pending {
+        private final VoucherOrder voucherOrder;
+        private volatile long sentAt;
+        private volatile int attempts;
+        // 本次发送被broker退回，随后的ack不代表消息已进入队列
+        private volatile boolean returned;
+
+        private Pending(VoucherOrder voucherOrder) {
+            this.voucherOrder = voucherOrder;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        confirmedCounter = meterRegistry.counter("seckill.order.confirmed");
+        retriedCounter = meterRegistry.counter("seckill.order.retried");
+        returnedCounter = meterRegistry.counter("seckill.order.returned");
+        rejectedCounter = meterRegistry.counter("seckill.order.in.flight.rejected");
+        Gauge.builder("seckill.order.in.flight", inFlight, Map::size).register(meterRegistry);
+        rabbitTemplate.setConfirmCallback((correlationData, ack, cause) -> {
+            if (correlationData == null) {
+                return;
+            }
+            String orderId = orderIdOf(correlationData.getId());
+            Pending pending = current(correlationData.getId());
+            if (pending == null) {
+                return;
+            }
+            if (ack && !pending.returned) {
+                if (inFlight.remove(orderId, pending)) {
+                    confirmedCounter.increment();
+                }
+                return;
+            }
+            if (!ack) {
+                log.error("秒杀订单消息被broker拒绝，订单id：{}，原因：{}", orderId, cause);
+            }
+            // 立即进入重发
+            pending.sentAt = 0;
+        });
+        // 退回发生在ack之前，在这里标记，收到ack时不再移除
+        rabbitTemplate.setReturnCallback((message, replyCode, replyText, exchange, routingKey) -> {
+            returnedCounter.increment();
+            Object correlation = message.getMessageProperties()
+                    .getHeader(PublisherCallbackChannel.RETURNED_MESSAGE_CORRELATION_KEY);
+            log.error("秒杀订单消息无法路由，等待重发，关联id：{}，exchange：{}，routingKey：{}，原因：{}",
+                    correlation, exchange, routingKey, replyText);
+            Pending pending = correlation == null ? null : current(correlation.toString());
+            if (pending != null) {
+                pending.returned = true;
+                pending.sentAt = 0;
+            }
+        });
+    }
+
+    /**
+     * 缓冲区已满，新的订单会被拒绝，调用方可以在扣减库存之前先检查
+     */
+    public boolean isFull() {
+        return inFlight.size() >= maxInFlight;
+    }
+
+    /**
+     * @return 缓冲区已满时返回false，订单没有发送，调用方需要归还库存
+     */
+    public boolean publish(VoucherOrder voucherOrder) {
+        if (isFull()) {
+            rejectedCounter.increment();
+            log.error("秒杀订单重发缓冲区已满，拒绝订单，订单id：{}，缓冲区大小：{}", voucherOrder.getId(), inFlight.size());
+            return false;
+        }
+        Pending pending = new Pending(voucherOrder);
+        inFlight.put(voucherOrder.getId().toString(), pending);
+        send(pending);
+        return true;
+    }
+
+    /**
+     * 重发发送失败、被拒绝或超时未确认的订单
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.retry-interval-ms:1000}")
+    public void retry() {
+        long now = System.currentTimeMillis();
+        for (Pending pending : inFlight.values()) {
+            if (now - pending.sentAt >= confirmTimeoutMillis) {
+                retriedCounter.increment();
+                log.warn("重发秒杀订单消息，订单id：{}，第{}次", pending.voucherOrder.getId(), pending.attempts);
+                send(pending);
+            }
+        }
+    }
+
+    /**
+     * 关联id对应的订单仍在缓冲区中，并且是最近一次发送时返回
+     */
+    private Pending current(String correlationId) {
+        Pending pending = inFlight.get(orderIdOf(correlationId));
+        if (pending == null || !correlationId.equals(correlationId(pending))) {
+            return null;
+        }
+        return pending;
+    }
+
+    private static String orderIdOf(String correlationId) {
+        int i = correlationId.indexOf(':');
+        return i < 0 ? correlationId : correlationId.substring(0, i);
+    }
+
+    private static String correlationId(Pending pending) {
+        return pending.voucherOrder.getId() + ":" + pending.attempts;
+    }
+
+    private void send(Pending pending) {
+        pending.sentAt = System.currentTimeMillis();
+        pending.attempts++;
+        pending.returned = false;
+        VoucherOrder voucherOrder = pending.voucherOrder;
+        try {
+            rabbitTemplate.convertAndSend(SECKILL_EXCHANGE, SECKILL_ROUTING_KEY, voucherOrder,
+                    new CorrelationData(correlationId(pending)));
+        } catch (Exception e) {
+            // 留在缓冲区中等待重发
+            pending.sentAt = 0;
+            log.error("秒杀成功的消息发送失败，支付单id：{}， 优惠券id：{}", voucherOrder.getId(), voucherOrder.getVoucherId(), e);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_RECONCILE_NAME;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_CANCELLED;
+
+/**
+ * 秒杀库存和订单对账，定时执行，不在下单路径上做任何扫描。
+ * <p>
+ * 1、一条聚合查询取出所有秒杀券的数据库库存和有效订单数，和redis台账快照（剩余库存、下单用户数）比较，见SeckillStockLedger；
+ * 2、下单用户数和有效订单数不一致的券（以及每隔full-every轮的所有券）才分批比较具体用户：
+ * redis中有而数据库中没有的订单补建，数据库中有而redis中没有的订单在redis中补记扣减；
+ * 3、两边 剩余库存 + 订单数 的差值说明redis库存发生了漂移，以数据库为准修正redis库存。
+ * 所有修正都要求连续两轮观察到相同的结果，给还在队列中的订单和正在进行的取消留出处理时间。
+ */
+@Slf4j
+@Component
+public class SeckillOrderReconciler {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStockSegments seckillStockSegments;
+    @Resource
+    private SeckillStockLedger seckillStockLedger;
+    @Resource
+    private RedisIDGenerator redisIDGenerator;
+    @Resource
+    private RedisLockFactory redisLockFactory;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 只对账结束时间在这段时间内的秒杀券
+    @Value("${hmdp.seckill.reconcile.lookback-hours:24}")
+    private long lookbackHours;
+    // 逐个比较用户时每次从数据库和redis中读取的数量
+    @Value("${hmdp.seckill.reconcile.batch-size:1000}")
+    private int batchSize;
+    // 每隔多少轮对所有秒杀券逐个比较用户，覆盖丢单和多单数量恰好相等的情况
+    @Value("${hmdp.seckill.reconcile.full-every:12}")
+    private int fullEvery;
+
+    // 上一轮发现的差异，voucherId -> userIds
+    private Map<Long, Set<String>> lostSuspects = new HashMap<>();
+    private Map<Long, Set<String>> extraSuspects = new HashMap<>();
+    // 上一轮发现的库存漂移，voucherId -> redis比数据库多出的库存
+    private Map<Long, Long> driftSuspects = new HashMap<>();
+    private long rounds;
+    private final AtomicInteger missing = new AtomicInteger();
+    private Counter repairedCounter;
+    private Counter claimedCounter;
+    private Counter stockAdjustedCounter;
+
+    @PostConstruct
+    public void init() {
+        repairedCounter = meterRegistry.counter("seckill.order.repaired");
+        claimedCounter = meterRegistry.counter("seckill.order.claimed");
+        stockAdjustedCounter = meterRegistry.counter("seckill.stock.adjusted");
+        meterRegistry.gauge("seckill.order.reconcile.missing", missing);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:300000}",
+            initialDelayString = "${hmdp.seckill.reconcile.interval-ms:300000}")
+    public void reconcile() {
+        ILock lock = redisLockFactory.createLock(LOCK_SECKILL_RECONCILE_NAME);
+        if (!lock.tryLock(600)) {
+            return;
+        }
+        try {
+            // 单条语句读取库存和有效订单数，两者来自同一个快照，子查询走idx_voucher_status索引
+            List<Map<String, Object>> ledgers = seckillVoucherService.listMaps(Wrappers.<SeckillVoucher>query()
+                    .select("voucher_id", "stock",
+                            "(SELECT COUNT(*) FROM tb_voucher_order o WHERE o.voucher_id = tb_seckill_voucher.voucher_id" +
+                                    " AND o.status <> " + VOUCHER_ORDER_CANCELLED + ") AS sold")
+                    .ge("end_time", LocalDateTime.now().minusHours(lookbackHours)));
+            boolean full = fullEvery > 0 && rounds++ % fullEvery == 0;
+            Map<Long, Set<String>> lostNow = new HashMap<>();
+            Map<Long, Set<String>> extraNow = new HashMap<>();
+            Map<Long, Long> driftNow = new HashMap<>();
+            int missingCount = 0;
+            for (Map<String, Object> ledger : ledgers) {
+                Long voucherId = ((Number) ledger.get("voucher_id")).longValue();
+                long dbStock = ((Number) ledger.get("stock")).longValue();
+                long dbSold = ((Number) ledger.get("sold")).longValue();
+                long[] redis = seckillStockLedger.snapshot(voucherId);
+                if (redis == null) {
+                    continue;
+                }
+                if (full || redis[1] != dbSold || lostSuspects.containsKey(voucherId) || extraSuspects.containsKey(voucherId)) {
+                    missingCount += reconcileOrders(voucherId, lostNow, extraNow);
+                }
+                long drift = redis[0] + redis[1] - dbStock - dbSold;
+                if (drift == 0) {
+                    continue;
+                }
+                if (driftSuspects.getOrDefault(voucherId, 0L) == drift) {
+                    log.warn("修正redis库存漂移，优惠券id：{}，redis多出：{}", voucherId, drift);
+                    seckillStockLedger.adjust(voucherId, -drift);
+                    stockAdjustedCounter.increment();
+                } else {
+                    driftNow.put(voucherId, drift);
+                }
+            }
+            lostSuspects = lostNow;
+            extraSuspects = extraNow;
+            driftSuspects = driftNow;
+            missing.set(missingCount);
+        } catch (Exception e) {
+            log.error("秒杀订单对账失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 逐个比较一张券的下单用户
+     * @return redis中有而数据库中没有的订单数
+     */
+    private int reconcileOrders(Long voucherId, Map<Long, Set<String>> lostNow, Map<Long, Set<String>> extraNow) {
+        // 先释放分段秒杀中途宕机留下的占用，仍在进行中的占用本轮不当作丢失的订单
+        int segments = seckillStockSegments.segmentsOf(voucherId);
+        Set<String> reserved = segments > 1 ? seckillStockSegments.sweepReservations(voucherId, segments) : Collections.emptySet();
+        Set<String> redisUsers = redisUsers(voucherId);
+        redisUsers.removeAll(reserved);
+        Map<String, Long> dbOrders = dbOrders(voucherId);
+        Set<String> dbUsers = dbOrders.keySet();
+
+        Set<String> extra = new HashSet<>(dbUsers);
+        extra.removeAll(redisUsers);
+        Set<String> previousExtra = extraSuspects.getOrDefault(voucherId, Collections.emptySet());
+        Set<String> pendingExtra = new HashSet<>();
+        for (String userId : extra) {
+            if (!previousExtra.contains(userId)) {
+                pendingExtra.add(userId);
+            } else if (seckillStockLedger.claim(voucherId, Long.valueOf(userId), dbOrders.get(userId))) {
+                log.warn("redis中缺少下单记录，补记扣减，优惠券id：{}，用户id：{}", voucherId, userId);
+                claimedCounter.increment();
+            }
+        }
+        if (!pendingExtra.isEmpty()) {
+            extraNow.put(voucherId, pendingExtra);
+        }
+
+        Set<String> lost = new HashSet<>(redisUsers);
+        lost.removeAll(dbUsers);
+        if (lost.isEmpty()) {
+            return 0;
+        }
+        Set<String> previous = lostSuspects.getOrDefault(voucherId, Collections.emptySet());
+        Set<String> cancelled = cancelledUsers(voucherId, previous);
+        // 沿用下单时保存的订单id，原订单迟到时按主键去重，旧数据没有记录时才生成新的id
+        Map<String, Long> orderIds = seckillStockLedger.orderIds(voucherId, previous);
+        List<VoucherOrder> repair = new ArrayList<>();
+        Set<String> pending = new HashSet<>();
+        for (String userId : lost) {
+            if (cancelled.contains(userId)) {
+                // 订单已取消但归还redis库存时失败，补做归还
+                seckillStockLedger.release(voucherId, Long.valueOf(userId));
+            } else if (previous.contains(userId)) {
+                VoucherOrder voucherOrder = new VoucherOrder();
+                Long orderId = orderIds.get(userId);
+                voucherOrder.setId(orderId != null ? orderId : redisIDGenerator.nextId("order"));
+                voucherOrder.setUserId(Long.valueOf(userId));
+                voucherOrder.setVoucherId(voucherId);
+                repair.add(voucherOrder);
+            } else {
+                pending.add(userId);
+            }
+        }
+        if (!repair.isEmpty()) {
+            // 数据库库存不足时createVoucherOrders会把redis库存归还
+            log.warn("补建丢失的秒杀订单，优惠券id：{}，数量：{}", voucherId, repair.size());
+            voucherOrderService.createVoucherOrders(repair);
+            repairedCounter.increment(repair.size());
+        }
+        if (!pending.isEmpty()) {
+            lostNow.put(voucherId, pending);
+        }
+        return lost.size();
+    }
+
+    /**
+     * 按id分页读取有效订单，用户id -> 订单id，走idx_voucher_status索引
+     */
+    private Map<String, Long> dbOrders(Long voucherId) {
+        Map<String, Long> users = new HashMap<>();
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .ne("status", VOUCHER_ORDER_CANCELLED)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + batchSize)
+                    .list();
+            orders.forEach(order -> users.put(order.getUserId().toString(), order.getId()));
+            if (orders.size() < batchSize) {
+                return users;
+            }
+            lastId = orders.get(orders.size() - 1).getId();
+        }
+    }
+
+    private Set<String> cancelledUsers(Long voucherId, Set<String> userIds) {
+        if (userIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> users = new HashSet<>();
+        voucherOrderService.query()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .eq("status", VOUCHER_ORDER_CANCELLED)
+                .in("user_id", userIds)
+                .list()
+                .forEach(order -> users.add(order.getUserId().toString()));
+        return users;
+    }
+
+    private Set<String> redisUsers(Long voucherId) {
+        Set<String> users = new HashSet<>();
+        int segments = seckillStockSegments.segmentsOf(voucherId);
+        if (segments <= 1) {
+            scanMembers(SeckillStockSegments.orderKey(voucherId), users);
+            return users;
+        }
+        for (int i = 0; i < segments; i++) {
+            scanMembers(SeckillStockSegments.orderKey(voucherId, i), users);
+        }
+        return users;
+    }
+
+    /**
+     * 用SSCAN分批读取，避免大集合的SMEMBERS阻塞redis
+     */
+    private void scanMembers(String key, Set<String> users) {
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(key, ScanOptions.scanOptions().count(batchSize).build())) {
+            cursor.forEachRemaining(users::add);
+        } catch (IOException e) {
+            log.warn("关闭SSCAN游标失败，key：{}", key, e);
+        }
+    }
+}
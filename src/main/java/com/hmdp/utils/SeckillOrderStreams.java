@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAMS_KEY;
+
+/**
+ * 订单stream的登记表：每张券（分段券的每个分段）有自己的订单stream，消费者从这里找到需要读取的stream。
+ * 登记表是一个zset，score为最后一次登记的时间；秒杀成功后登记订单所在的stream，
+ * 同一个节点在REGISTER_INTERVAL_MINUTES内只登记一次，长时间没有登记且已经消费完的stream由消费者移出登记表。
+ * 登记失败不会丢失订单，消息已经在stream中，下一次下单时重新登记。
+ */
+@Slf4j
+@Component
+public class SeckillOrderStreams {
+
+    public static final long REGISTER_INTERVAL_MINUTES = 10;
+
+    // score不大于ARGV[2]时才移出，避免移出的同时有节点重新登记
+    private static final DefaultRedisScript<Long> UNREGISTER_SCRIPT = new DefaultRedisScript<>(
+            "local score = redis.call('zscore', KEYS[1], ARGV[1]) " +
+            "if (not score or tonumber(score) > tonumber(ARGV[2])) then return 0 end " +
+            "return redis.call('zrem', KEYS[1], ARGV[1])", Long.class);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 本节点最近登记过的stream
+    private final Cache<String, Boolean> registered = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(REGISTER_INTERVAL_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    public void register(String streamKey) {
+        if (registered.getIfPresent(streamKey) != null) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForZSet().add(SECKILL_ORDER_STREAMS_KEY, streamKey, System.currentTimeMillis());
+            registered.put(streamKey, Boolean.TRUE);
+        } catch (Exception e) {
+            log.warn("登记订单stream失败，下次下单时重试，stream：{}", streamKey, e);
+        }
+    }
+
+    /**
+     * 所有已登记的stream
+     */
+    public Set<String> streams() {
+        Set<String> streams = stringRedisTemplate.opsForZSet().range(SECKILL_ORDER_STREAMS_KEY, 0, -1);
+        return streams == null ? Collections.emptySet() : streams;
+    }
+
+    /**
+     * 超过idleMillis没有任何节点登记的stream，idleMillis需要大于REGISTER_INTERVAL_MINUTES，
+     * 否则仍在下单的stream可能被移出后不再登记
+     */
+    public Set<String> idleStreams(long idleMillis) {
+        Set<String> streams = stringRedisTemplate.opsForZSet()
+                .rangeByScore(SECKILL_ORDER_STREAMS_KEY, 0, System.currentTimeMillis() - idleMillis);
+        return streams == null ? Collections.emptySet() : streams;
+    }
+
+    /**
+     * 移出仍然超过idleMillis没有登记的stream
+     */
+    public boolean unregister(String streamKey, long idleMillis) {
+        Long removed = stringRedisTemplate.execute(UNREGISTER_SCRIPT, Collections.singletonList(SECKILL_ORDER_STREAMS_KEY),
+                streamKey, String.valueOf(System.currentTimeMillis() - idleMillis));
+        return removed != null && removed > 0;
+    }
+}
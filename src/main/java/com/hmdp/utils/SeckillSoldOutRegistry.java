@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀券售罄标记。
+ * secKill.lua返回库存不足后在本地标记该券已售罄，并通过pub/sub通知所有节点，
+ * 之后的请求直接返回，不再访问redis；补充库存时清除标记。
+ * 标记带有过期时间，即使清除消息丢失或与售罄消息乱序，也只会误拦截一小段时间。
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "+";
+    private static final String REPLENISHED = "-";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:10}")
+    private long soldOutTtlSeconds;
+
+    private Cache<Long, Boolean> soldOut;
+    private Counter shortCircuitCounter;
+
+    @PostConstruct
+    public void init() {
+        soldOut = Caffeine.newBuilder().expireAfterWrite(soldOutTtlSeconds, TimeUnit.SECONDS).build();
+        shortCircuitCounter = meterRegistry.counter("seckill.soldout.short.circuit");
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 本地判断秒杀券是否已售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        if (soldOut.getIfPresent(voucherId) == null) {
+            return false;
+        }
+        shortCircuitCounter.increment();
+        return true;
+    }
+
+    /**
+     * 标记已售罄并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        // 已经标记过的不再重复广播
+        if (soldOut.asMap().putIfAbsent(voucherId, Boolean.TRUE) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 库存补充后清除所有节点的售罄标记
+     */
+    public void clear(Long voucherId) {
+        soldOut.invalidate(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, REPLENISHED + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(body.substring(1));
+        if (body.startsWith(SOLD_OUT)) {
+            soldOut.put(voucherId, Boolean.TRUE);
+        } else {
+            soldOut.invalidate(voucherId);
+        }
+        log.debug("收到秒杀券售罄通知：{}", body);
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 秒杀库存台账。每一次扣减在两边各有一条记录：
+ * redis中是库存hash的stock减1并把用户加入下单用户set（同一个脚本内完成），
+ * mysql中是tb_seckill_voucher.stock减1并插入一条tb_voucher_order（同一个事务内完成）。
+ * 因此两边各自满足 剩余库存 + 有效订单数 = 发放的总库存，对账只需要比较这两个和，不需要逐条扫描订单。
+ * 归还库存以下单记录为凭据：redis中用户必须在set中，mysql中订单必须从未支付变为已取消，重复归还不会多加库存。
+ */
+@Slf4j
+@Component
+public class SeckillStockLedger {
+
+    private static final DefaultRedisScript<Long> LEDGER_SCRIPT;
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SNAPSHOT_SCRIPT;
+    static {
+        LEDGER_SCRIPT = new DefaultRedisScript<>();
+        LEDGER_SCRIPT.setResultType(Long.class);
+        LEDGER_SCRIPT.setLocation(new ClassPathResource("stockLedger.lua"));
+        SNAPSHOT_SCRIPT = new DefaultRedisScript<>();
+        SNAPSHOT_SCRIPT.setResultType(List.class);
+        SNAPSHOT_SCRIPT.setLocation(new ClassPathResource("stockLedger.lua"));
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockSegments seckillStockSegments;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private Counter returnedCounter;
+
+    @PostConstruct
+    public void init() {
+        returnedCounter = meterRegistry.counter("seckill.stock.returned");
+    }
+
+    /**
+     * 订单没有写入数据库或者被取消时，把库存还给redis，同时释放用户的下单资格
+     * @return 是否真的归还了库存，用户不在下单用户set中时返回false
+     */
+    public boolean release(Long voucherId, Long userId) {
+        if (!execute(voucherId, userId, "return", "")) {
+            return false;
+        }
+        returnedCounter.increment();
+        // 售罄标记可能已经广播到各个节点，归还后需要清除
+        seckillSoldOutRegistry.clear(voucherId);
+        log.info("归还秒杀库存，优惠券id：{}，用户id：{}", voucherId, userId);
+        return true;
+    }
+
+    /**
+     * 数据库中存在订单而redis中没有下单记录时补记一次扣减，同时记下数据库中的订单id
+     */
+    public boolean claim(Long voucherId, Long userId, Long orderId) {
+        return execute(voucherId, userId, "claim", orderId.toString());
+    }
+
+    /**
+     * 读取用户下单时保存的订单id，没有记录的用户不在结果中
+     */
+    public Map<String, Long> orderIds(Long voucherId, Collection<String> userIds) {
+        int segments = seckillStockSegments.segmentsOf(voucherId);
+        Map<String, List<String>> byKey = new HashMap<>();
+        for (String userId : userIds) {
+            String key = segments <= 1 ? SeckillStockSegments.orderIdKey(voucherId)
+                    : SeckillStockSegments.orderIdKey(voucherId, SeckillStockSegments.homeSegment(Long.valueOf(userId), segments));
+            byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(userId);
+        }
+        Map<String, Long> orderIds = new HashMap<>();
+        byKey.forEach((key, users) -> {
+            List<Object> values = stringRedisTemplate.opsForHash().multiGet(key, new ArrayList<>(users));
+            for (int i = 0; i < users.size(); i++) {
+                if (values.get(i) != null) {
+                    orderIds.put(users.get(i), Long.valueOf(values.get(i).toString()));
+                }
+            }
+        });
+        return orderIds;
+    }
+
+    /**
+     * redis一侧的台账快照
+     * @return {剩余库存, 下单用户数}，秒杀券不在redis中时返回null
+     */
+    public long[] snapshot(Long voucherId) {
+        int segments = seckillStockSegments.segmentsOf(voucherId);
+        if (segments <= 1) {
+            return snapshot(SeckillStockSegments.mapKey(voucherId), SeckillStockSegments.orderKey(voucherId));
+        }
+        // 各分段位于不同的slot，分别读取后相加，对账时需要连续两轮一致才会修正
+        long[] total = new long[2];
+        for (int i = 0; i < segments; i++) {
+            long[] segment = snapshot(SeckillStockSegments.stockKey(voucherId, i), SeckillStockSegments.orderKey(voucherId, i));
+            if (segment == null) {
+                return null;
+            }
+            total[0] += segment[0];
+            total[1] += segment[1];
+        }
+        return total;
+    }
+
+    /**
+     * 直接修正redis中的剩余库存。分段时增加的库存平均分到各个分段；减少的库存依次从还有库存的分段上扣除，
+     * 任何分段都不会被扣成负数，扣不完的部分留到下一轮对账
+     * @return 实际修正的数量
+     */
+    public long adjust(Long voucherId, long delta) {
+        int segments = seckillStockSegments.segmentsOf(voucherId);
+        long applied = 0;
+        if (segments <= 1) {
+            applied = adjust(SeckillStockSegments.mapKey(voucherId), delta);
+        } else if (delta > 0) {
+            for (int i = 0; i < segments; i++) {
+                long share = delta / segments + (i < delta % segments ? 1 : 0);
+                if (share > 0) {
+                    applied += adjust(SeckillStockSegments.stockKey(voucherId, i), share);
+                }
+            }
+        } else {
+            for (int i = 0; i < segments && applied > delta; i++) {
+                applied += adjust(SeckillStockSegments.stockKey(voucherId, i), delta - applied);
+            }
+        }
+        if (applied != delta) {
+            log.warn("redis库存不足以修正全部漂移，优惠券id：{}，需要修正：{}，实际修正：{}", voucherId, delta, applied);
+        }
+        if (applied > 0) {
+            seckillSoldOutRegistry.clear(voucherId);
+        }
+        return applied;
+    }
+
+    private long adjust(String stockKey, long delta) {
+        Long res = stringRedisTemplate.execute(LEDGER_SCRIPT, Collections.singletonList(stockKey),
+                "adjust", String.valueOf(delta));
+        return res == null ? 0 : res;
+    }
+
+    private boolean execute(Long voucherId, Long userId, String op, String orderId) {
+        int segments = seckillStockSegments.segmentsOf(voucherId);
+        List<String> keys;
+        if (segments <= 1) {
+            keys = Arrays.asList(SeckillStockSegments.mapKey(voucherId), SeckillStockSegments.orderKey(voucherId),
+                    SeckillStockSegments.orderIdKey(voucherId));
+        } else {
+            // 用户的下单记录在所属分段，库存也还到这个分段，总库存不变
+            int home = SeckillStockSegments.homeSegment(userId, segments);
+            keys = Arrays.asList(SeckillStockSegments.stockKey(voucherId, home), SeckillStockSegments.orderKey(voucherId, home),
+                    SeckillStockSegments.orderIdKey(voucherId, home));
+        }
+        Long res = stringRedisTemplate.execute(LEDGER_SCRIPT, keys, op, userId.toString(), orderId);
+        return res != null && res == 1L;
+    }
+
+    private long[] snapshot(String stockKey, String orderKey) {
+        List<?> values = stringRedisTemplate.execute(SNAPSHOT_SCRIPT, Arrays.asList(stockKey, orderKey), "snapshot", "");
+        if (values == null || values.size() < 2) {
+            return null;
+        }
+        return new long[]{((Number) values.get(0)).longValue(), ((Number) values.get(1)).longValue()};
+    }
+}
@@ -0,0 +1,292 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券的redis key都带hash tag：整券的库存hash和下单用户集合以{voucherId}为tag，分段的以{voucherId:segment}为tag，
+ * 同一个脚本访问的key总在同一个slot，集群模式下也能执行。
+ * <p>
+ * 秒杀券分段库存：把一张券的库存拆到N个带hash tag的分段上，分散到不同的slot，避免所有请求争抢同一个key。
+ * 用户按id固定路由到所属分段，下单记录也只写在所属分段，保证一人一单；
+ * 所属分段库存为空时先占住下单资格，再到其他分段扣减，成功后确认占用，全部为空则释放资格。
+ * 占用、跨分段扣减和确认分属不同的slot，无法在一个脚本中完成：节点在中途宕机时，超过reserve-ttl-ms未确认的占用
+ * 由对账任务释放（见sweepReservations）；确认时发现占用已被释放，则把扣减的库存还回去，按库存不足处理。
+ * <p>
+ * 使用redis stream投递订单时，每张券（分段券的每个分段）有自己的订单stream，与下单记录使用相同的hash tag，
+ * 订单消息在扣减成功或者确认占用的脚本中写入，任何部署方式下都不会出现下单记录已写入、订单消息却丢失的情况。
+ */
+@Slf4j
+@Component
+public class SeckillStockSegments {
+
+    private static final int RESERVED = 7;
+
+    private static final DefaultRedisScript<Long> SEGMENT_SCRIPT;
+    private static final DefaultRedisScript<Long> SEGMENT_STOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> SEGMENT_RESERVE_SCRIPT;
+    static {
+        SEGMENT_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_SCRIPT.setResultType(Long.class);
+        SEGMENT_SCRIPT.setLocation(new ClassPathResource("secKillSegment.lua"));
+        SEGMENT_STOCK_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_STOCK_SCRIPT.setResultType(Long.class);
+        SEGMENT_STOCK_SCRIPT.setLocation(new ClassPathResource("secKillSegmentStock.lua"));
+        SEGMENT_RESERVE_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_RESERVE_SCRIPT.setResultType(Long.class);
+        SEGMENT_RESERVE_SCRIPT.setLocation(new ClassPathResource("secKillSegmentReserve.lua"));
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.max-segments:64}")
+    private int maxSegments;
+    // 分段秒杀占用下单资格后超过这段时间仍未确认，视为节点中途宕机，释放资格
+    @Value("${hmdp.seckill.reserve-ttl-ms:10000}")
+    private long reserveTtlMillis;
+
+    // 券的分段数创建后不会改变，本地缓存避免每次请求都查询
+    private final Cache<Long, Integer> segmentCounts = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * 整券的库存和秒杀时间窗口，分段券的分段数也记录在这里
+     */
+    public static String mapKey(Long voucherId) {
+        return SECKILL_MAP_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 未分段券的下单用户集合，和mapKey在同一个slot
+     */
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 未分段券的 用户id -> 订单id，和下单用户集合一起写入，对账补建订单时沿用原来的订单id
+     */
+    public static String orderIdKey(Long voucherId) {
+        return SECKILL_ORDER_ID_KEY + "{" + voucherId + "}";
+    }
+
+    /**
+     * 未分段券的订单stream，和mapKey在同一个slot
+     */
+    public static String streamKey(Long voucherId) {
+        return SECKILL_ORDER_STREAM_PREFIX + "{" + voucherId + "}";
+    }
+
+    /**
+     * 分段的订单stream，和分段的下单用户集合在同一个slot
+     */
+    public static String streamKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_STREAM_PREFIX + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 订单stream对应的死信stream，hash tag相同，回收脚本可以在一次调用中转移消息
+     */
+    public static String deadStreamKey(String streamKey) {
+        return streamKey + ".dead";
+    }
+
+    public static String stockKey(Long voucherId, int segment) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    public static String orderKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    public static String orderIdKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_ID_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 分段上已占用下单资格、还没有在其他分段扣减成功的用户，用户id -> 占用时的时间戳
+     */
+    public static String reservedKey(Long voucherId, int segment) {
+        return SECKILL_RESERVED_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 查询券的分段数，1表示未分段
+     */
+    public int segmentsOf(Long voucherId) {
+        return segmentCounts.get(voucherId, this::loadSegments);
+    }
+
+    /**
+     * 丢弃本地缓存的分段数重新读取，secKill.lua发现券已经是分段券时调用
+     */
+    public int reloadSegments(Long voucherId) {
+        segmentCounts.invalidate(voucherId);
+        return segmentsOf(voucherId);
+    }
+
+    private Integer loadSegments(Long voucherId) {
+        // 券还不存在时同样按未分段缓存，不存在的券不会每次都多查一次redis；
+        // 之后在其他节点创建的分段券由secKill.lua返回8，再通过reloadSegments重新读取
+        Object segments = stringRedisTemplate.opsForHash().get(mapKey(voucherId), "segments");
+        return segments == null ? 1 : Integer.valueOf(segments.toString());
+    }
+
+    /**
+     * 限制分段数不超过库存和配置的上限
+     */
+    public int normalize(Integer segments, int stock) {
+        if (segments == null || segments <= 1) {
+            return 1;
+        }
+        return Math.max(1, Math.min(segments, Math.min(maxSegments, stock)));
+    }
+
+    /**
+     * 新增秒杀券时把库存平均拆到各个分段
+     */
+    public void init(Long voucherId, int stock, int segments, long beginMillis, long endMillis) {
+        for (int i = 0; i < segments; i++) {
+            Map<String, String> segment = new HashMap<>();
+            segment.put("stock", String.valueOf(share(stock, segments, i)));
+            segment.put("beginMillis", String.valueOf(beginMillis));
+            segment.put("endMillis", String.valueOf(endMillis));
+            stringRedisTemplate.opsForHash().putAll(stockKey(voucherId, i), segment);
+        }
+        segmentCounts.put(voucherId, segments);
+    }
+
+    /**
+     * 补充库存，同样平均分到各个分段
+     */
+    public void replenish(Long voucherId, int amount, int segments) {
+        for (int i = 0; i < segments; i++) {
+            int share = share(amount, segments, i);
+            if (share > 0) {
+                stringRedisTemplate.opsForHash().increment(stockKey(voucherId, i), "stock", share);
+            }
+        }
+    }
+
+    /**
+     * 分段秒杀，返回值与secKill.lua一致：0 成功；1 库存不足；2 重复下单；3 未开始；4 已结束；5 秒杀券不存在
+     *
+     * @param useStream 为true时订单消息写入所属分段的订单stream
+     */
+    public int seckill(Long voucherId, Long userId, Long orderId, int segments, boolean useStream) {
+        int home = homeSegment(userId, segments);
+        String now = String.valueOf(System.currentTimeMillis());
+        List<String> keys = new ArrayList<>(5);
+        keys.add(stockKey(voucherId, home));
+        keys.add(orderKey(voucherId, home));
+        keys.add(orderIdKey(voucherId, home));
+        keys.add(reservedKey(voucherId, home));
+        if (useStream) {
+            keys.add(streamKey(voucherId, home));
+        }
+        Long res = stringRedisTemplate.execute(SEGMENT_SCRIPT, keys,
+                userId.toString(), now, orderId.toString(), voucherId.toString());
+        assert res != null;
+        if (res.intValue() != RESERVED) {
+            return res.intValue();
+        }
+        // 所属分段已空，从随机位置开始依次尝试其他分段，避免都挤到相邻的分段上
+        int offset = segments > 2 ? ThreadLocalRandom.current().nextInt(1, segments) : 1;
+        for (int i = 0; i < segments; i++) {
+            int segment = (home + offset + i) % segments;
+            if (segment == home) {
+                continue;
+            }
+            Long stockRes = stringRedisTemplate.execute(
+                    SEGMENT_STOCK_SCRIPT, Collections.singletonList(stockKey(voucherId, segment)));
+            if (stockRes != null && stockRes == 0) {
+                if (confirm(voucherId, home, userId, now, orderId, useStream)) {
+                    return 0;
+                }
+                // 占用已经超时被释放，用户不再持有下单资格，扣减的库存还回去
+                stringRedisTemplate.opsForHash().increment(stockKey(voucherId, segment), "stock", 1);
+                return 1;
+            }
+        }
+        // 所有分段都没有库存，释放占用的下单资格
+        reserve(voucherId, home, userId.toString(), now, "release");
+        return 1;
+    }
+
+    /**
+     * 释放超时未确认的占用，由对账任务在比较下单用户之前调用
+     * @return 仍在有效期内的占用用户，这些用户的订单还在创建中，不参与本轮对账
+     */
+    public Set<String> sweepReservations(Long voucherId, int segments) {
+        Set<String> reserved = new HashSet<>();
+        long expireBefore = System.currentTimeMillis() - reserveTtlMillis;
+        for (int i = 0; i < segments; i++) {
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(reservedKey(voucherId, i));
+            for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+                String userId = entry.getKey().toString();
+                String reservedAt = entry.getValue().toString();
+                if (Long.parseLong(reservedAt) >= expireBefore) {
+                    reserved.add(userId);
+                } else if (reserve(voucherId, i, userId, reservedAt, "release")) {
+                    log.warn("释放超时未确认的分段占用，优惠券id：{}，用户id：{}", voucherId, userId);
+                }
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * 确认占用，使用redis stream时在同一个脚本中写入订单消息
+     */
+    private boolean confirm(Long voucherId, int home, Long userId, String reservedAt, Long orderId, boolean useStream) {
+        if (!useStream) {
+            return reserve(voucherId, home, userId.toString(), reservedAt, "confirm");
+        }
+        Long res = stringRedisTemplate.execute(SEGMENT_RESERVE_SCRIPT,
+                Arrays.asList(reservedKey(voucherId, home), orderKey(voucherId, home), orderIdKey(voucherId, home),
+                        streamKey(voucherId, home)),
+                "confirm", userId.toString(), reservedAt, orderId.toString(), voucherId.toString());
+        return res != null && res == 1L;
+    }
+
+    private boolean reserve(Long voucherId, int home, String userId, String reservedAt, String op) {
+        Long res = stringRedisTemplate.execute(SEGMENT_RESERVE_SCRIPT,
+                Arrays.asList(reservedKey(voucherId, home), orderKey(voucherId, home), orderIdKey(voucherId, home)),
+                op, userId, reservedAt);
+        return res != null && res == 1L;
+    }
+
+    /**
+     * 用户所属的分段，一人一单的记录只写在这个分段
+     */
+    public static int homeSegment(Long userId, int segments) {
+        return (int) Math.floorMod(userId, (long) segments);
+    }
+
+    private static int share(int total, int segments, int i) {
+        return total / segments + (i < total % segments ? 1 : 0);
+    }
+}
@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 请求合并：同一个key的并发调用只有第一个线程真正执行loader，
+ * 其余线程等待同一个future的结果，避免缓存失效瞬间把相同的查询全部打到数据库
+ */
+@Component
+public class SingleFlight {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return (T) existing.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+        }
+        try {
+            T t = loader.get();
+            future.complete(t);
+            return t;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, future);
+        }
+    }
+
+    /**
+     * 批量合并：已经有其他调用在加载的key等待它们的结果，其余的key由当前线程调用一次loader批量加载，
+     * 其他线程对这些key的单个或批量调用同样等待这次加载。先完成自己的加载再等待其他调用，不会互相等待
+     *
+     * @param loader 参数为需要当前线程加载的key，返回 key -> 结果，缺少的key视为null
+     * @return key -> 结果，结果为null的key不在其中
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Map<String, T> executeAll(Collection<String> keys, Function<Collection<String>, Map<String, T>> loader) {
+        Map<String, CompletableFuture<Object>> owned = new LinkedHashMap<>();
+        Map<String, CompletableFuture<Object>> waiting = new LinkedHashMap<>();
+        for (String key : keys) {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            CompletableFuture<Object> existing = calls.putIfAbsent(key, future);
+            if (existing == null) {
+                owned.put(key, future);
+            } else {
+                waiting.put(key, existing);
+            }
+        }
+        Map<String, T> result = new HashMap<>(keys.size());
+        if (!owned.isEmpty()) {
+            try {
+                Map<String, T> loaded = loader.apply(owned.keySet());
+                owned.forEach((key, future) -> {
+                    T t = loaded == null ? null : loaded.get(key);
+                    future.complete(t);
+                    if (t != null) {
+                        result.put(key, t);
+                    }
+                });
+            } catch (RuntimeException e) {
+                owned.values().forEach(future -> future.completeExceptionally(e));
+                throw e;
+            } finally {
+                owned.forEach(calls::remove);
+            }
+        }
+        waiting.forEach((key, future) -> {
+            try {
+                Object t = future.join();
+                if (t != null) {
+                    result.put(key, (T) t);
+                }
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 当前正在执行中的key数量
+     */
+    public int inFlight() {
+        return calls.size();
+    }
+}
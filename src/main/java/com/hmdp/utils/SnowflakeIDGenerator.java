@@ -0,0 +1,222 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 进程内生成的雪花id，hmdp.id.snowflake.prefixes中的前缀由RedisIDGenerator转到这里，发号过程不访问redis。
+ * <p>
+ * 0 | 1 | 40位毫秒数 | 10位worker id | 12位序列号。第62位固定为1，RedisIDGenerator的 秒数<<32|序列号
+ * 在2058年之前都小于2^62，同一张表切换生成方式后id也不会重复。
+ * <p>
+ * worker id启动时从redis租用，后台定时续约并记录最后发放id的时间；续约时redis短暂不可用不影响发号，
+ * 但距离上次成功续约超过租约时长（减去1/10的余量）后拒绝发号，因为此时租约可能已过期并被其他节点租走；
+ * 发现租约已被其他节点占用时重新租用。时钟回拨不超过max-backward-ms时沿用上次的时间戳继续发号，超过则拒绝生成。
+ */
+@Slf4j
+@Component
+public class SnowflakeIDGenerator {
+
+    private static final long BEGIN_MILLIS = 1704067200000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long TIMESTAMP_MASK = (1L << 40) - 1;
+    private static final long TYPE_FLAG = 1L << 62;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setResultType(Long.class);
+        LEASE_SCRIPT.setLocation(new ClassPathResource("workerLease.lua"));
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.id.snowflake.prefixes:}")
+    private String[] prefixes = new String[0];
+    // >=0时使用固定的worker id，不向redis租用
+    @Value("${hmdp.id.snowflake.worker-id:-1}")
+    private long fixedWorkerId = -1;
+    @Value("${hmdp.id.snowflake.lease-seconds:300}")
+    private long leaseSeconds = 300;
+    @Value("${hmdp.id.snowflake.max-backward-ms:1000}")
+    private long maxBackwardMillis = 1000;
+
+    // 上次发号的 相对毫秒数<<SEQUENCE_BITS | 序列号
+    private final AtomicLong state = new AtomicLong();
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+    private final Set<String> supported = new HashSet<>();
+    private LongSupplier clock = System::currentTimeMillis;
+    // 计算租约有效期用的单调时钟，不受系统时间回拨影响
+    private LongSupplier ticker = System::nanoTime;
+    private volatile long workerId = -1;
+    // 租用的worker id在这个时间（ticker）之后不能再使用，固定worker id时不检查
+    private volatile long leaseDeadline;
+    private volatile boolean leaseRequired;
+    private ScheduledExecutorService heartbeat;
+
+    @PostConstruct
+    public void init() {
+        for (String prefix : prefixes) {
+            if (!prefix.trim().isEmpty()) {
+                supported.add(prefix.trim());
+            }
+        }
+        if (supported.isEmpty()) {
+            return;
+        }
+        if (fixedWorkerId >= 0) {
+            workerId = fixedWorkerId & MAX_WORKER_ID;
+            return;
+        }
+        leaseRequired = true;
+        lease();
+        long period = TimeUnit.SECONDS.toMillis(leaseSeconds) / 3;
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (heartbeat == null) {
+            return;
+        }
+        heartbeat.shutdownNow();
+        try {
+            execute("release", workerId);
+        } catch (Exception e) {
+            log.warn("释放worker id租约失败，worker id：{}", workerId, e);
+        }
+    }
+
+    public boolean supports(String prefix) {
+        return supported.contains(prefix);
+    }
+
+    /**
+     * 第62位为1的是雪花id，否则是RedisIDGenerator生成的id
+     */
+    public static boolean isSnowflakeId(long id) {
+        return (id & TYPE_FLAG) != 0;
+    }
+
+    /**
+     * 雪花id中相对BEGIN_MILLIS的毫秒数
+     */
+    public static long millisOf(long id) {
+        return id >>> (WORKER_BITS + SEQUENCE_BITS) & TIMESTAMP_MASK;
+    }
+
+    public long nextId() {
+        long worker = workerId;
+        if (worker < 0) {
+            throw new IllegalStateException("worker id尚未分配");
+        }
+        if (leaseRequired && ticker.getAsLong() - leaseDeadline > 0) {
+            throw new IllegalStateException("worker id租约已过期，续约成功前拒绝生成id");
+        }
+        while (true) {
+            long prev = state.get();
+            long last = prev >>> SEQUENCE_BITS;
+            long now = clock.getAsLong() - BEGIN_MILLIS;
+            if (now < last) {
+                if (last - now > maxBackwardMillis) {
+                    throw new IllegalStateException("时钟回拨" + (last - now) + "ms，拒绝生成id");
+                }
+                // 小幅回拨，沿用上次的时间戳
+                now = last;
+            }
+            long sequence = 0;
+            if (now == last) {
+                sequence = (prev & SEQUENCE_MASK) + 1;
+                if (sequence > SEQUENCE_MASK) {
+                    // 这一毫秒的序列号已经用完，等待时钟前进
+                    Thread.yield();
+                    continue;
+                }
+            }
+            if (state.compareAndSet(prev, now << SEQUENCE_BITS | sequence)) {
+                return TYPE_FLAG | (now & TIMESTAMP_MASK) << (WORKER_BITS + SEQUENCE_BITS) | worker << SEQUENCE_BITS | sequence;
+            }
+        }
+    }
+
+    /**
+     * 从随机位置开始依次尝试租用worker id，跳过被占用和上一个持有者时间比本机时钟新的id
+     */
+    private void lease() {
+        int start = ThreadLocalRandom.current().nextInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long candidate = (start + i) & MAX_WORKER_ID;
+            long requestedAt = ticker.getAsLong();
+            Long res = execute("acquire", candidate);
+            if (res != null && res == 1) {
+                extendLease(requestedAt);
+                workerId = candidate;
+                log.info("租用worker id：{}", candidate);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的worker id");
+    }
+
+    private void renew() {
+        try {
+            long requestedAt = ticker.getAsLong();
+            Long res = execute("renew", workerId);
+            if (res != null && res == 1) {
+                extendLease(requestedAt);
+            } else if (res != null && res == 0) {
+                log.warn("worker id租约已失效，重新租用，原worker id：{}", workerId);
+                lease();
+            }
+        } catch (Exception e) {
+            // redis不可用时在租约有效期内继续使用当前的worker id
+            log.warn("worker id续约失败，worker id：{}", workerId, e);
+        }
+    }
+
+    /**
+     * 租约从发出请求的时刻开始计算，redis上的过期时间只会更晚；再留出1/10的余量应对两边的时钟漂移
+     */
+    private void extendLease(long requestedAt) {
+        long leaseMillis = TimeUnit.SECONDS.toMillis(leaseSeconds);
+        leaseDeadline = requestedAt + TimeUnit.MILLISECONDS.toNanos(leaseMillis - leaseMillis / 10);
+    }
+
+    private Long execute(String op, long worker) {
+        long lastMillis = Math.max(clock.getAsLong(), (state.get() >>> SEQUENCE_BITS) + BEGIN_MILLIS);
+        List<String> keys = Arrays.asList(ID_WORKER_KEY + "{" + worker + "}", ID_WORKER_KEY + "{" + worker + "}:ts");
+        return stringRedisTemplate.execute(LEASE_SCRIPT, keys,
+                op, owner, String.valueOf(TimeUnit.SECONDS.toMillis(leaseSeconds)), String.valueOf(lastMillis));
+    }
+}
@@ -5,4 +5,7 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    // tb_voucher_order.status
+    public static final int VOUCHER_ORDER_UNPAID = 1;
+    public static final int VOUCHER_ORDER_CANCELLED = 4;
 }
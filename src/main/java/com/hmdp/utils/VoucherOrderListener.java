@@ -3,50 +3,59 @@ package com.hmdp.utils;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.IVoucherOrderService;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
 import org.springframework.amqp.rabbit.annotation.Exchange;
 import org.springframework.amqp.rabbit.annotation.Queue;
 import org.springframework.amqp.rabbit.annotation.QueueBinding;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.config.MqConfig.SECKILL_EXCHANGE;
+import static com.hmdp.config.MqConfig.SECKILL_QUEUE;
+import static com.hmdp.config.MqConfig.SECKILL_ROUTING_KEY;
 
 @Slf4j
 @Service
+@ConditionalOnProperty(name = "hmdp.seckill.order.batch.enabled", havingValue = "false", matchIfMissing = true)
 public class VoucherOrderListener {
 
+    // 同一用户的订单在本地排队等待的最长时间
+    private static final long ORDER_LOCK_WAIT_SECONDS = 5L;
+
     @Resource
-    private RedissonClient redissonClient;
+    private RedisLockFactory redisLockFactory;
 
     @Resource
     private IVoucherOrderService voucherOrderService;
 
     @RabbitListener(bindings = @QueueBinding(
-            value = @Queue(name = "secKill.success.queue"),
-            exchange = @Exchange(name = "secKill.topic"),
-            key = "secKill.success"
+            value = @Queue(name = SECKILL_QUEUE),
+            exchange = @Exchange(name = SECKILL_EXCHANGE),
+            key = SECKILL_ROUTING_KEY
     ))
     public void onMessage(VoucherOrder voucherOrder) {
-        try {
-            handlerVoucherOrder(voucherOrder);
-        } catch (Exception e) {
-            log.error("处理订单有异常发生：", e);
-            // 根据业务逻辑可以考虑消息重试或者放入死信队列
-        }
+        // 异常直接抛出，由容器按指数退避重试，重试耗尽后转入死信队列
+        handlerVoucherOrder(voucherOrder);
     }
 
     private void handlerVoucherOrder(VoucherOrder voucherOrder) {
         Long userId = voucherOrder.getUserId();
         //理论上redis+lua脚本已经实现了一人一单的功能，同一个用户不可能走到这里，但是还是留着兜底用
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-
-        boolean isLocked = lock.tryLock();
-
+        //先在本地锁上排队再获取redis锁，拿到锁后由createVoucherOrder跳过重复的订单
+        ILock lock = redisLockFactory.createLocalQueuedLock("order:" + userId);
+        boolean isLocked;
+        try {
+            isLocked = lock.tryLock(ORDER_LOCK_WAIT_SECONDS, -1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
         if (!isLocked) {
-            log.error("用户重复下单，用户ID：{}", userId);
-            return;
+            // 抛出异常交给容器重试，不直接丢弃订单
+            throw new IllegalStateException("获取下单锁超时，用户ID：" + userId);
         }
 
         try {
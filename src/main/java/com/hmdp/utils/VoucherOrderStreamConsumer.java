@@ -0,0 +1,331 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+
+/**
+ * 基于redis stream消费秒杀订单，hmdp.seckill.order.transport=stream时启用。
+ * 订单由秒杀脚本在扣减库存的同时XADD写入券（分段券的分段）自己的stream，stream的key和库存使用相同的hash tag；
+ * 这里轮询SeckillOrderStreams中登记的所有stream（以及升级前的{stream.orders}），通过消费者组读取后批量创建订单，事务提交后再XACK；
+ * 集群模式下不同的stream不在同一个slot，不能用一次XREADGROUP阻塞读取，所有stream都没有新消息时等待poll-interval-ms。
+ * 一批订单创建失败时逐条重试，只有失败的消息留在pending列表中，已确认的消息随即XDEL，stream不会无限增长；
+ * 定时重新处理自己的pending消息，并接管其他消费者长时间未确认的消息，超过最大投递次数的消息转入该stream对应的死信stream。
+ * 死信stream同样用消费者组读取：订单标记为失败并归还redis库存，死信只保留最近dead-max-len条。
+ * 超过idle-minutes没有下单且已经消费完的stream移出登记表。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order.transport", havingValue = "stream")
+@DependsOn("seckillKeyMigration")
+public class VoucherOrderStreamConsumer {
+
+    private static final DefaultRedisScript<Long> CREATE_GROUP_SCRIPT = new DefaultRedisScript<>(
+            "local res = redis.pcall('xgroup', 'create', KEYS[1], ARGV[1], '0', 'MKSTREAM') " +
+            "if (type(res) == 'table' and res.err) then return 0 end " +
+            "return 1", Long.class);
+
+    // 确认后删除，ARGV[1]为消费者组，其余为消息id
+    private static final DefaultRedisScript<Long> ACK_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('xack', KEYS[1], ARGV[1], unpack(ARGV, 2)) " +
+            "return redis.call('xdel', KEYS[1], unpack(ARGV, 2))", Long.class);
+
+    private static final DefaultRedisScript<Long> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setResultType(Long.class);
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("streamClaim.lua"));
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+    @Resource
+    private SeckillStockLedger seckillStockLedger;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private SeckillOrderStreams seckillOrderStreams;
+
+    @Value("${hmdp.seckill.order.stream.group:order-group}")
+    private String group;
+    @Value("${hmdp.seckill.order.stream.batch-size:100}")
+    private int batchSize;
+    // 超过这个时间未确认的消息会被重新处理
+    @Value("${hmdp.seckill.order.stream.pending-idle-ms:30000}")
+    private long pendingIdleMillis;
+    @Value("${hmdp.seckill.order.stream.max-deliveries:5}")
+    private int maxDeliveries;
+    @Value("${hmdp.seckill.order.stream.dead-max-len:100000}")
+    private long deadMaxLen;
+    // 所有stream都没有新消息时的等待时间
+    @Value("${hmdp.seckill.order.stream.poll-interval-ms:200}")
+    private long pollIntervalMillis;
+    // 超过这个时间没有下单的stream消费完后移出登记表，需要大于SeckillOrderStreams的登记间隔
+    @Value("${hmdp.seckill.order.stream.idle-minutes:60}")
+    private long idleMinutes;
+
+    private final String consumerName = ManagementFactory.getRuntimeMXBean().getName();
+    // 已经创建过消费者组的stream
+    private final Set<String> initialized = new HashSet<>();
+    private volatile boolean running = true;
+    private Thread consumerThread;
+
+    @PostConstruct
+    public void init() {
+        if (idleMinutes <= SeckillOrderStreams.REGISTER_INTERVAL_MINUTES) {
+            throw new IllegalStateException("hmdp.seckill.order.stream.idle-minutes需要大于" + SeckillOrderStreams.REGISTER_INTERVAL_MINUTES);
+        }
+        consumerThread = new Thread(this::consume, "voucher-order-stream");
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        consumerThread.interrupt();
+    }
+
+    private void consume() {
+        long lastRecover = 0;
+        while (running) {
+            try {
+                List<String> streams = streams();
+                if (System.currentTimeMillis() - lastRecover >= pendingIdleMillis) {
+                    streams.forEach(this::recoverPending);
+                    removeIdleStreams();
+                    lastRecover = System.currentTimeMillis();
+                }
+                // 依次读取每个stream的新消息，都没有时等待一会儿
+                int read = 0;
+                for (String stream : streams) {
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(group, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(stream, ReadOffset.lastConsumed()));
+                    if (records != null && !records.isEmpty()) {
+                        read += records.size();
+                        handle(stream, records);
+                    }
+                }
+                if (read == 0) {
+                    Thread.sleep(pollIntervalMillis);
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.error("处理订单stream消息异常", e);
+                sleep();
+            }
+        }
+    }
+
+    /**
+     * 登记表中的stream加上升级前所有订单共用的stream，第一次读到的stream先创建消费者组
+     */
+    private List<String> streams() {
+        List<String> streams = new ArrayList<>();
+        streams.add(SECKILL_ORDER_STREAM_KEY);
+        streams.addAll(seckillOrderStreams.streams());
+        for (String stream : streams) {
+            if (!initialized.contains(stream)) {
+                stringRedisTemplate.execute(CREATE_GROUP_SCRIPT, Collections.singletonList(stream), group);
+                stringRedisTemplate.execute(CREATE_GROUP_SCRIPT,
+                        Collections.singletonList(SeckillStockSegments.deadStreamKey(stream)), group);
+                initialized.add(stream);
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * 长时间没有下单的stream，消息和死信都已处理完时移出登记表；stream本身保留，之后重新登记时消费者组仍然可用
+     */
+    private void removeIdleStreams() {
+        long idleMillis = TimeUnit.MINUTES.toMillis(idleMinutes);
+        for (String stream : seckillOrderStreams.idleStreams(idleMillis)) {
+            Long size = stringRedisTemplate.opsForStream().size(stream);
+            PendingMessagesSummary dead = stringRedisTemplate.opsForStream()
+                    .pending(SeckillStockSegments.deadStreamKey(stream), group);
+            if ((size == null || size == 0) && (dead == null || dead.getTotalPendingMessages() == 0)
+                    && seckillOrderStreams.unregister(stream, idleMillis)) {
+                initialized.remove(stream);
+                log.info("订单stream已消费完，移出登记表：{}", stream);
+            }
+        }
+    }
+
+    /**
+     * 接管长时间未确认的消息，然后从头处理自己的pending列表
+     */
+    private void recoverPending(String stream) {
+        String deadStream = SeckillStockSegments.deadStreamKey(stream);
+        Long claimed = stringRedisTemplate.execute(CLAIM_SCRIPT, Arrays.asList(stream, deadStream),
+                group, consumerName, String.valueOf(pendingIdleMillis), String.valueOf(batchSize),
+                String.valueOf(maxDeliveries));
+        if (claimed != null && claimed > 0) {
+            log.warn("接管未确认的订单消息{}条，stream：{}", claimed, stream);
+        }
+        // 有消息处理失败时停止，留到下一轮，避免反复读到同一批pending消息
+        while (running) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(group, consumerName),
+                    StreamReadOptions.empty().count(batchSize),
+                    StreamOffset.create(stream, ReadOffset.from("0")));
+            if (records == null || records.isEmpty() || !handle(stream, records) || records.size() < batchSize) {
+                break;
+            }
+        }
+        drainDeadLetters(deadStream);
+    }
+
+    /**
+     * @return 是否所有消息都已确认
+     */
+    private boolean handle(String stream, List<MapRecord<String, Object, Object>> records) {
+        if (records == null || records.isEmpty()) {
+            return true;
+        }
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        List<RecordId> ids = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = parse(record.getValue());
+            if (voucherOrder == null) {
+                // 格式错误的消息重试也不会成功，直接转入死信stream，不影响同一批的其他订单
+                log.error("订单stream消息格式错误，转入死信stream，消息id：{}，内容：{}", record.getId(), record.getValue());
+                stringRedisTemplate.opsForStream().add(SeckillStockSegments.deadStreamKey(stream), record.getValue());
+                acknowledge(stream, Collections.singletonList(record.getId()));
+                continue;
+            }
+            voucherOrders.add(voucherOrder);
+            ids.add(record.getId());
+        }
+        if (voucherOrders.isEmpty()) {
+            return true;
+        }
+        try {
+            // 批量创建订单会跳过已经存在的订单，重复投递不会重复下单
+            voucherOrderService.createVoucherOrders(voucherOrders);
+            acknowledge(stream, ids);
+            return true;
+        } catch (Exception e) {
+            log.error("批量处理订单stream消息失败，逐条重试", e);
+        }
+        boolean allAcked = true;
+        for (int i = 0; i < voucherOrders.size(); i++) {
+            try {
+                voucherOrderService.createVoucherOrders(Collections.singletonList(voucherOrders.get(i)));
+                acknowledge(stream, Collections.singletonList(ids.get(i)));
+            } catch (Exception e) {
+                // 留在pending列表中，超过最大投递次数后转入死信stream
+                allAcked = false;
+                log.error("处理订单stream消息失败，订单id：{}", voucherOrders.get(i).getId(), e);
+            }
+        }
+        return allAcked;
+    }
+
+    /**
+     * 处理死信：订单不在数据库中时标记为失败并归还redis库存。先处理自己未确认的死信，再读取新的死信
+     */
+    private void drainDeadLetters(String deadStream) {
+        for (ReadOffset offset : new ReadOffset[]{ReadOffset.from("0"), ReadOffset.lastConsumed()}) {
+            while (running) {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(group, consumerName),
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(deadStream, offset));
+                if (records == null || records.isEmpty() || !handleDeadLetters(deadStream, records)
+                        || records.size() < batchSize) {
+                    break;
+                }
+            }
+        }
+        stringRedisTemplate.opsForStream().trim(deadStream, deadMaxLen);
+    }
+
+    private boolean handleDeadLetters(String deadStream, List<MapRecord<String, Object, Object>> records) {
+        boolean allAcked = true;
+        for (MapRecord<String, Object, Object> record : records) {
+            try {
+                VoucherOrder voucherOrder = parse(record.getValue());
+                if (voucherOrder != null && voucherOrderService.getById(voucherOrder.getId()) == null) {
+                    log.error("订单转入死信stream，标记失败并归还库存，订单id：{}", voucherOrder.getId());
+                    orderStatusTracker.failed(voucherOrder.getId());
+                    seckillStockLedger.release(voucherOrder.getVoucherId(), voucherOrder.getUserId());
+                }
+                meterRegistry.counter("seckill.order.dead.lettered").increment();
+                stringRedisTemplate.opsForStream().acknowledge(deadStream, group, record.getId());
+            } catch (Exception e) {
+                allAcked = false;
+                log.error("处理订单死信失败，消息id：{}", record.getId(), e);
+            }
+        }
+        return allAcked;
+    }
+
+    private void acknowledge(String stream, List<RecordId> ids) {
+        List<String> args = new ArrayList<>(ids.size() + 1);
+        args.add(group);
+        ids.forEach(id -> args.add(id.getValue()));
+        stringRedisTemplate.execute(ACK_SCRIPT, Collections.singletonList(stream), args.toArray());
+    }
+
+    /**
+     * @return 缺少字段或格式错误时返回null
+     */
+    private static VoucherOrder parse(Map<Object, Object> value) {
+        try {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(Long.valueOf(value.get("id").toString()));
+            voucherOrder.setUserId(Long.valueOf(value.get("userId").toString()));
+            voucherOrder.setVoucherId(Long.valueOf(value.get("voucherId").toString()));
+            return voucherOrder;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
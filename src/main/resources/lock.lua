@@ -0,0 +1,11 @@
+---
+--- 可重入锁：hash中field为持有者（节点前缀+线程id），value为重入次数
+--- KEYS[1]：锁key  ARGV[1]：租约毫秒数  ARGV[2]：持有者
+--- 返回值：nil 加锁成功；否则为锁的剩余毫秒数，等待方据此决定最多等待多久
+---
+if (redis.call('exists', KEYS[1]) == 0 or redis.call('hexists', KEYS[1], ARGV[2]) == 1) then
+    redis.call('hincrby', KEYS[1], ARGV[2], 1)
+    redis.call('pexpire', KEYS[1], ARGV[1])
+    return nil
+end
+return redis.call('pttl', KEYS[1])
\ No newline at end of file
@@ -0,0 +1,31 @@
+---
+--- 集群令牌桶限流
+--- KEYS[1]：令牌桶hash
+--- ARGV[1]：每秒补充的令牌数  ARGV[2]：桶容量  ARGV[3]：本次需要的令牌数
+--- 返回值：1 放行；0 限流
+--- 时间取redis服务器的TIME，各应用节点的时钟偏差不会多补或少补令牌
+---
+-- redis 5之前读取TIME之后再写入需要按命令复制，5及以后默认如此
+redis.replicate_commands()
+local key = KEYS[1]
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local requested = tonumber(ARGV[3])
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+
+tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate / 1000)
+local allowed = 0
+if (tokens >= requested) then
+    tokens = tokens - requested
+    allowed = 1
+end
+
+redis.call('hmset', key, 'tokens', tostring(tokens), 'ts', tostring(now))
+-- 桶装满所需时间之后没有请求就可以删除
+redis.call('pexpire', key, math.ceil(capacity / rate * 1000) + 1000)
+return allowed
\ No newline at end of file
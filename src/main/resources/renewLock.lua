@@ -0,0 +1,10 @@
+---
+--- 看门狗续约：锁仍属于持有者时重置过期时间
+--- KEYS[1]：锁key  ARGV[1]：租约毫秒数  ARGV[2]：持有者
+--- 返回值：1 续约成功；0 锁已经不属于持有者
+---
+if (redis.call('hexists', KEYS[1], ARGV[2]) == 1) then
+    redis.call('pexpire', KEYS[1], ARGV[1])
+    return 1
+end
+return 0
\ No newline at end of file
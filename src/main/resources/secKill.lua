@@ -3,13 +3,39 @@
 --- Created by Fu1sh.
 --- DateTime: 2024/8/16 22:42
 ---
+--- KEYS：1 库存hash；2 下单用户集合；3 用户订单id的hash；4 券的订单stream（仅在使用redis stream投递订单时传入）
+--- KEYS都带有相同的hash tag，集群模式下同样在一个脚本中完成
+--- ARGV：1 优惠券id；2 用户id；3 当前毫秒时间戳；4 订单id
+--- 返回值：0 成功；1 库存不足；2 重复下单；3 未开始；4 已结束；5 秒杀券不存在；6 缺少时间窗口字段；8 分段券，需要按分段秒杀
+---
 local voucherId = ARGV[1]
 local userId = ARGV[2]
+local now = tonumber(ARGV[3])
+
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+
+-- 一次取出库存和秒杀时间窗口（毫秒时间戳），分段券的库存在各个分段上，这里只有分段数
+local info = redis.call('hmget', stockKey, 'stock', 'beginMillis', 'endMillis', 'segments')
+if (not info[1]) then
+    if (info[4]) then
+        return 8
+    end
+    return 5
+end
+if (not info[2] or not info[3]) then
+    return 6
+end
 
-local stockKey = 'seckill:map:'..voucherId
-local orderKey = 'seckill:order:'..voucherId
+if (now < tonumber(info[2])) then
+    return 3
+end
+
+if (now > tonumber(info[3])) then
+    return 4
+end
 
-if (tonumber(redis.call('hget', stockKey, 'stock')) <= 0) then
+if (tonumber(info[1]) <= 0) then
     return 1
 end
 
@@ -19,4 +45,11 @@ end
 
 redis.call('hincrby', stockKey, 'stock', -1)
 redis.call('sadd', orderKey, userId)
+-- 订单id和下单记录一起保存，对账补建丢失的订单时沿用这个id，与迟到的原订单按主键去重
+redis.call('hset', KEYS[3], userId, ARGV[4])
+
+-- 使用redis stream投递订单时，订单消息和库存扣减在同一个脚本中完成，不会出现扣了库存却丢了订单
+if (KEYS[4]) then
+    redis.call('xadd', KEYS[4], '*', 'id', ARGV[4], 'userId', userId, 'voucherId', voucherId)
+end
 return 0
\ No newline at end of file
@@ -0,0 +1,42 @@
+---
+--- 分段库存模式下在用户所属的分段上秒杀，KEYS都带有相同的hash tag，位于同一个slot
+--- KEYS[1]：分段库存hash  KEYS[2]：分段下单用户set  KEYS[3]：分段用户订单id的hash  KEYS[4]：分段占用记录的hash
+--- KEYS[5]：分段的订单stream（仅在使用redis stream投递订单时传入）
+--- ARGV[1]：用户id  ARGV[2]：当前毫秒时间戳  ARGV[3]：订单id  ARGV[4]：优惠券id
+--- 返回值：0 成功；2 重复下单；3 未开始；4 已结束；5 秒杀券不存在；7 已占用下单资格但本分段库存为空
+--- 返回7时在占用记录中写入 用户id -> 时间戳，到其他分段扣减成功后确认，全部失败或者超时未确认时释放，见secKillSegmentReserve.lua
+---
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local userId = ARGV[1]
+local now = tonumber(ARGV[2])
+
+local info = redis.call('hmget', stockKey, 'stock', 'beginMillis', 'endMillis')
+if (not info[1]) then
+    return 5
+end
+
+if (now < tonumber(info[2])) then
+    return 3
+end
+
+if (now > tonumber(info[3])) then
+    return 4
+end
+
+-- 用户只会记录在所属分段，这里是一人一单的唯一判断点
+if (redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+redis.call('sadd', orderKey, userId)
+redis.call('hset', KEYS[3], userId, ARGV[3])
+
+if (tonumber(info[1]) <= 0) then
+    redis.call('hset', KEYS[4], userId, ARGV[2])
+    return 7
+end
+redis.call('hincrby', stockKey, 'stock', -1)
+if (KEYS[5]) then
+    redis.call('xadd', KEYS[5], '*', 'id', ARGV[3], 'userId', userId, 'voucherId', ARGV[4])
+end
+return 0
\ No newline at end of file
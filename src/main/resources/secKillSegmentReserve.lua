@@ -0,0 +1,20 @@
+---
+--- 分段秒杀占用下单资格后的确认和释放，KEYS都在用户所属分段的slot中
+--- KEYS[1]：分段占用记录的hash  KEYS[2]：分段下单用户set  KEYS[3]：分段用户订单id的hash
+--- KEYS[4]：分段的订单stream（仅在confirm且使用redis stream投递订单时传入）
+--- ARGV[1]：操作  ARGV[2]：用户id  ARGV[3]：占用时的时间戳  ARGV[4]：订单id  ARGV[5]：优惠券id（ARGV[4]、ARGV[5]仅在传入KEYS[4]时需要）
+--- confirm：其他分段扣减成功，删除占用记录并写入订单消息；release：删除占用记录并释放下单资格
+--- 占用记录不存在或者时间戳不一致时不做任何修改，确认和释放只有一个会生效
+--- 返回值：1 成功；0 占用记录已被处理
+---
+if (redis.call('hget', KEYS[1], ARGV[2]) ~= ARGV[3]) then
+    return 0
+end
+redis.call('hdel', KEYS[1], ARGV[2])
+if (ARGV[1] == 'release') then
+    redis.call('srem', KEYS[2], ARGV[2])
+    redis.call('hdel', KEYS[3], ARGV[2])
+elseif (KEYS[4]) then
+    redis.call('xadd', KEYS[4], '*', 'id', ARGV[4], 'userId', ARGV[2], 'voucherId', ARGV[5])
+end
+return 1
\ No newline at end of file
@@ -0,0 +1,11 @@
+---
+--- 所属分段库存为空时，到其他分段扣减库存
+--- KEYS[1]：分段库存hash
+--- 返回值：0 成功；1 库存不足
+---
+local stock = tonumber(redis.call('hget', KEYS[1], 'stock'))
+if (not stock or stock <= 0) then
+    return 1
+end
+redis.call('hincrby', KEYS[1], 'stock', -1)
+return 0
\ No newline at end of file
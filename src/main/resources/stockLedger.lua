@@ -0,0 +1,52 @@
+---
+--- 秒杀库存台账：库存hash中的stock和下单用户set一起变化，二者之和在任何时刻都等于发放的总库存
+--- KEYS[1]：库存hash  KEYS[2]：下单用户set  KEYS[3]：用户订单id的hash（snapshot不需要）
+--- ARGV[1]：操作  ARGV[2]：用户id  ARGV[3]：订单id（claim时传入）
+--- return：用户在set中时移除，并归还1个库存；claim：用户不在set中时加入，并扣减1个库存；返回值 1 有变化，0 无变化
+--- 用户的订单id随下单记录一起写入和删除
+--- snapshot：返回{库存, 下单用户数}，秒杀券不存在时返回空
+--- adjust：库存加上ARGV[2]，减少时最多减到0，返回实际的变化量（只需要KEYS[1]）
+---
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local op = ARGV[1]
+
+if (redis.call('exists', stockKey) == 0) then
+    if (op == 'snapshot') then
+        return {}
+    end
+    return 0
+end
+
+if (op == 'snapshot') then
+    local stock = tonumber(redis.call('hget', stockKey, 'stock')) or 0
+    return {stock, redis.call('scard', orderKey)}
+end
+
+if (op == 'adjust') then
+    local stock = math.max(tonumber(redis.call('hget', stockKey, 'stock')) or 0, 0)
+    local delta = tonumber(ARGV[2])
+    if (delta < 0 and stock + delta < 0) then
+        delta = -stock
+    end
+    if (delta ~= 0) then
+        redis.call('hincrby', stockKey, 'stock', delta)
+    end
+    return delta
+end
+
+if (op == 'return') then
+    if (redis.call('srem', orderKey, ARGV[2]) == 0) then
+        return 0
+    end
+    redis.call('hdel', KEYS[3], ARGV[2])
+    redis.call('hincrby', stockKey, 'stock', 1)
+    return 1
+end
+
+if (redis.call('sadd', orderKey, ARGV[2]) == 0) then
+    return 0
+end
+redis.call('hset', KEYS[3], ARGV[2], ARGV[3])
+redis.call('hincrby', stockKey, 'stock', -1)
+return 1
\ No newline at end of file
@@ -0,0 +1,36 @@
+---
+--- 回收订单stream中长时间未确认的消息
+--- KEYS[1]：stream  KEYS[2]：死信stream（和KEYS[1]使用同一个hash tag）
+--- ARGV[1]：消费者组  ARGV[2]：当前消费者  ARGV[3]：最小空闲毫秒数  ARGV[4]：每次最多检查的条数  ARGV[5]：最大投递次数
+--- 超过最大投递次数的消息确认并从stream中删除后转入死信stream，其余转给当前消费者重新处理
+--- 返回值：转给当前消费者的条数
+---
+local stream = KEYS[1]
+local group = ARGV[1]
+local consumer = ARGV[2]
+local minIdle = tonumber(ARGV[3])
+local maxDeliveries = tonumber(ARGV[5])
+
+local pending = redis.call('xpending', stream, group, '-', '+', ARGV[4])
+local ids = {}
+for _, entry in ipairs(pending) do
+    -- entry：id、消费者、空闲毫秒数、投递次数
+    if (tonumber(entry[3]) >= minIdle) then
+        if (tonumber(entry[4]) >= maxDeliveries) then
+            local records = redis.call('xrange', stream, entry[1], entry[1])
+            if (#records > 0) then
+                redis.call('xadd', KEYS[2], '*', unpack(records[1][2]))
+            end
+            redis.call('xack', stream, group, entry[1])
+            redis.call('xdel', stream, entry[1])
+        else
+            table.insert(ids, entry[1])
+        end
+    end
+end
+
+if (#ids == 0) then
+    return 0
+end
+redis.call('xclaim', stream, group, consumer, minIdle, unpack(ids))
+return #ids
\ No newline at end of file
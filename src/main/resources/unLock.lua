@@ -1,4 +1,14 @@
-if redis.call('GET', KEYS[1]) == ARGV[1] then
-    return redis.call('DEL', KEYS[1])
+---
+--- 释放可重入锁，重入次数减到0时删除锁并通知等待方
+--- KEYS[1]：锁key  ARGV[1]：持有者  ARGV[2]：解锁通知频道（频道不是key，集群模式下不能放在KEYS中）
+--- 返回值：nil 锁不属于当前持有者；0 仍被当前持有者重入持有；1 已释放
+---
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 0) then
+    return nil
 end
-return 0
+if (redis.call('hincrby', KEYS[1], ARGV[1], -1) > 0) then
+    return 0
+end
+redis.call('del', KEYS[1])
+redis.call('publish', ARGV[2], KEYS[1])
+return 1
\ No newline at end of file
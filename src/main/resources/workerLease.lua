@@ -0,0 +1,33 @@
+---
+--- 雪花id的worker id租约
+--- KEYS[1]：租约key  KEYS[2]：该worker id最后发放id的毫秒时间戳
+--- ARGV[1]：操作 acquire|renew|release  ARGV[2]：持有者  ARGV[3]：租约毫秒数  ARGV[4]：当前（或最后使用的）毫秒时间戳
+--- acquire返回值：1 成功；0 已被占用；2 上一个持有者用到的时间比当前时钟还新（时钟回拨），不能使用
+--- renew/release返回值：1 成功；0 租约已经不属于自己
+---
+local op = ARGV[1]
+local now = tonumber(ARGV[4])
+
+if (op == 'acquire') then
+    if (redis.call('exists', KEYS[1]) == 1) then
+        return 0
+    end
+    local last = tonumber(redis.call('get', KEYS[2]))
+    if (last and last > now) then
+        return 2
+    end
+    redis.call('set', KEYS[1], ARGV[2], 'PX', ARGV[3])
+    redis.call('set', KEYS[2], ARGV[4])
+    return 1
+end
+
+if (redis.call('get', KEYS[1]) ~= ARGV[2]) then
+    return 0
+end
+redis.call('set', KEYS[2], ARGV[4])
+if (op == 'renew') then
+    redis.call('pexpire', KEYS[1], ARGV[3])
+else
+    redis.call('del', KEYS[1])
+end
+return 1
\ No newline at end of file
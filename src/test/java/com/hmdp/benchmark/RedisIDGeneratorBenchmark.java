@@ -0,0 +1,92 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.RedisIDGenerator;
+import com.hmdp.utils.SnowflakeIDGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * id生成器的JMH基准，需要本地redis，连接方式见SeckillBenchmarkSupport。
+ * legacy是改造前的实现（每次新建DateTimeFormatter并INCR），incr/segment是RedisIDGenerator的两种模式，
+ * snowflake是交给SnowflakeIDGenerator在进程内生成（使用固定的worker id，不租用）。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(16)
+public class RedisIDGeneratorBenchmark {
+
+    private static final String PREFIX = "bench";
+    private static final long BEGIN_TIMESTAMP = 1704067200L;
+
+    @Param({"incr", "segment", "snowflake"})
+    private String mode;
+
+    private SeckillBenchmarkSupport support;
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisIDGenerator redisIDGenerator;
+    private SnowflakeIDGenerator snowflakeIDGenerator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        support = new SeckillBenchmarkSupport();
+        stringRedisTemplate = support.getStringRedisTemplate();
+        redisIDGenerator = new RedisIDGenerator(stringRedisTemplate);
+        if ("snowflake".equals(mode)) {
+            snowflakeIDGenerator = new SnowflakeIDGenerator();
+            ReflectionTestUtils.setField(snowflakeIDGenerator, "prefixes", new String[]{PREFIX});
+            ReflectionTestUtils.setField(snowflakeIDGenerator, "fixedWorkerId", 1L);
+            snowflakeIDGenerator.init();
+            ReflectionTestUtils.setField(redisIDGenerator, "snowflakeIDGenerator", snowflakeIDGenerator);
+        } else {
+            ReflectionTestUtils.setField(redisIDGenerator, "mode", mode);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        redisIDGenerator.destroy();
+        if (snowflakeIDGenerator != null) {
+            snowflakeIDGenerator.destroy();
+        }
+        support.close();
+    }
+
+    @Benchmark
+    public long legacy() {
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        long l = stringRedisTemplate.opsForValue().increment("icr:" + PREFIX + date);
+        return timeStamp << 32 | l;
+    }
+
+    @Benchmark
+    public long nextId() {
+        return redisIDGenerator.nextId(PREFIX);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisIDGeneratorBenchmark.class.getSimpleName())
+                .jvmArgsAppend(System.getProperties().entrySet().stream()
+                        .filter(e -> e.getKey().toString().startsWith("bench."))
+                        .map(e -> "-D" + e.getKey() + "=" + e.getValue())
+                        .toArray(String[]::new))
+                .build();
+        new Runner(options).run();
+    }
+}
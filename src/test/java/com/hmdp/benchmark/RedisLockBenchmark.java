@@ -0,0 +1,112 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisLockFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多线程争抢同一把锁的JMH基准，需要本地redis，连接方式见SeckillBenchmarkSupport。
+ * <ul>
+ *     <li>spin：改造前的做法，SETNX失败后sleep 50ms再重试</li>
+ *     <li>pubsub：RedisDistributedLock.tryLock(wait, lease)，等待解锁通知</li>
+ *     <li>local：先在本地同名锁上排队，再获取pubsub锁</li>
+ * </ul>
+ * 临界区内做一次redis INCR并检查同一时刻只有一个持有者。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(8)
+public class RedisLockBenchmark {
+
+    private static final String LOCK_NAME = "bench:contended";
+    private static final String COUNTER_KEY = "bench:lock:counter";
+    private static final long SPIN_INTERVAL = 50L;
+
+    @Param({"spin", "pubsub", "local"})
+    private String lockType;
+
+    private final AtomicInteger holders = new AtomicInteger();
+
+    private SeckillBenchmarkSupport support;
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisLockFactory redisLockFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        support = new SeckillBenchmarkSupport();
+        stringRedisTemplate = support.getStringRedisTemplate();
+        redisLockFactory = new RedisLockFactory(stringRedisTemplate, support.getListenerContainer());
+        redisLockFactory.init();
+        stringRedisTemplate.delete("lock:" + LOCK_NAME);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stringRedisTemplate.delete("lock:" + LOCK_NAME);
+        stringRedisTemplate.delete(COUNTER_KEY);
+        redisLockFactory.destroy();
+        support.close();
+    }
+
+    @Benchmark
+    public void lockUnlock(Blackhole blackhole) throws InterruptedException {
+        if ("spin".equals(lockType)) {
+            spin(blackhole);
+            return;
+        }
+        ILock lock = "local".equals(lockType)
+                ? redisLockFactory.createLocalQueuedLock(LOCK_NAME) : redisLockFactory.createLock(LOCK_NAME);
+        if (!lock.tryLock(10, 10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("等待锁超时");
+        }
+        try {
+            criticalSection(blackhole);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void spin(Blackhole blackhole) throws InterruptedException {
+        String key = "lock:" + LOCK_NAME;
+        while (!Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS))) {
+            Thread.sleep(SPIN_INTERVAL);
+        }
+        try {
+            criticalSection(blackhole);
+        } finally {
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    private void criticalSection(Blackhole blackhole) {
+        if (holders.incrementAndGet() != 1) {
+            throw new IllegalStateException("同一时刻出现多个持锁线程");
+        }
+        blackhole.consume(stringRedisTemplate.opsForValue().increment(COUNTER_KEY));
+        holders.decrementAndGet();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisLockBenchmark.class.getSimpleName())
+                .jvmArgsAppend(System.getProperties().entrySet().stream()
+                        .filter(e -> e.getKey().toString().startsWith("bench."))
+                        .map(e -> "-D" + e.getKey() + "=" + e.getValue())
+                        .toArray(String[]::new))
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,215 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.service.impl.SeckillVoucherServiceImpl;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.RedisIDGenerator;
+import com.hmdp.utils.SeckillAdmissionControl;
+import com.hmdp.utils.SeckillOrderStreams;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockSegments;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 压测用的redis环境：直接连接本地redis（默认127.0.0.1:6379的15号库），不启动spring容器、mysql和rabbitmq。
+ * 秒杀服务使用stream投递订单，订单写入券（分段）自己的redis stream后不再消费。
+ * 可以通过-Dbench.redis.host、-Dbench.redis.port、-Dbench.redis.password、-Dbench.redis.database修改连接。
+ */
+public class SeckillBenchmarkSupport implements AutoCloseable {
+
+    private final LettuceConnectionFactory connectionFactory;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public SeckillBenchmarkSupport() {
+        RedisStandaloneConfiguration config = new RedisStandaloneConfiguration(
+                System.getProperty("bench.redis.host", "127.0.0.1"),
+                Integer.getInteger("bench.redis.port", 6379));
+        config.setDatabase(Integer.getInteger("bench.redis.database", 15));
+        String password = System.getProperty("bench.redis.password");
+        if (password != null) {
+            config.setPassword(password);
+        }
+        connectionFactory = new LettuceConnectionFactory(config);
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+    }
+
+    public StringRedisTemplate getStringRedisTemplate() {
+        return stringRedisTemplate;
+    }
+
+    public RedisMessageListenerContainer getListenerContainer() {
+        return listenerContainer;
+    }
+
+    /**
+     * 按生产环境的方式组装秒杀服务
+     *
+     * @param admission 是否开启准入控制
+     */
+    public SeckillVoucherServiceImpl newSeckillService(boolean admission) {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        SeckillSoldOutRegistry soldOutRegistry = new SeckillSoldOutRegistry();
+        ReflectionTestUtils.setField(soldOutRegistry, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(soldOutRegistry, "redisMessageListenerContainer", listenerContainer);
+        ReflectionTestUtils.setField(soldOutRegistry, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(soldOutRegistry, "soldOutTtlSeconds", 10L);
+        soldOutRegistry.init();
+
+        SeckillStockSegments stockSegments = new SeckillStockSegments();
+        ReflectionTestUtils.setField(stockSegments, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(stockSegments, "maxSegments", 64);
+
+        SeckillOrderStreams orderStreams = new SeckillOrderStreams();
+        ReflectionTestUtils.setField(orderStreams, "stringRedisTemplate", stringRedisTemplate);
+
+        OrderStatusTracker orderStatusTracker = new OrderStatusTracker();
+        ReflectionTestUtils.setField(orderStatusTracker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(orderStatusTracker, "redisMessageListenerContainer", listenerContainer);
+        orderStatusTracker.init();
+
+        // 与application.yaml一致，订单id从号段中发放
+        RedisIDGenerator redisIDGenerator = new RedisIDGenerator(stringRedisTemplate);
+        ReflectionTestUtils.setField(redisIDGenerator, "mode", "segment");
+
+        SeckillVoucherServiceImpl service = new SeckillVoucherServiceImpl();
+        ReflectionTestUtils.setField(service, "redisIDGenerator", redisIDGenerator);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(service, "seckillSoldOutRegistry", soldOutRegistry);
+        ReflectionTestUtils.setField(service, "seckillStockSegments", stockSegments);
+        ReflectionTestUtils.setField(service, "seckillOrderStreams", orderStreams);
+        ReflectionTestUtils.setField(service, "orderStatusTracker", orderStatusTracker);
+        ReflectionTestUtils.setField(service, "seckillAdmissionControl", newAdmissionControl(admission));
+        ReflectionTestUtils.setField(service, "orderTransport", "stream");
+        service.loadScript();
+        return service;
+    }
+
+    /**
+     * 准入控制使用application.yaml中的默认参数，不开启集群限流
+     */
+    public SeckillAdmissionControl newAdmissionControl(boolean enabled) {
+        SeckillAdmissionControl admissionControl = new SeckillAdmissionControl();
+        ReflectionTestUtils.setField(admissionControl, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(admissionControl, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(admissionControl, "enabled", enabled);
+        ReflectionTestUtils.setField(admissionControl, "userQps", 1.0);
+        ReflectionTestUtils.setField(admissionControl, "userBurst", 2L);
+        ReflectionTestUtils.setField(admissionControl, "voucherQps", 2000.0);
+        ReflectionTestUtils.setField(admissionControl, "voucherBurst", 2000L);
+        ReflectionTestUtils.setField(admissionControl, "policy", "reject");
+        ReflectionTestUtils.setField(admissionControl, "queueTimeoutMillis", 200L);
+        ReflectionTestUtils.setField(admissionControl, "maxQueue", 200);
+        admissionControl.init();
+        return admissionControl;
+    }
+
+    /**
+     * 写入一张正在进行中的秒杀券，segments>1时使用分段库存
+     */
+    public void createVoucher(long voucherId, int stock, int segments, SeckillStockSegments stockSegments) {
+        cleanUp(voucherId, segments);
+        LocalDateTime begin = LocalDateTime.now().minusHours(1);
+        LocalDateTime end = LocalDateTime.now().plusHours(1);
+        long beginMillis = CacheSerializer.toEpochMilli(begin);
+        long endMillis = CacheSerializer.toEpochMilli(end);
+        Map<String, String> svr = new HashMap<>();
+        svr.put("beginMillis", String.valueOf(beginMillis));
+        svr.put("endMillis", String.valueOf(endMillis));
+        if (segments > 1) {
+            svr.put("segments", String.valueOf(segments));
+            stockSegments.init(voucherId, stock, segments, beginMillis, endMillis);
+        } else {
+            svr.put("stock", String.valueOf(stock));
+        }
+        stringRedisTemplate.opsForHash().putAll(SeckillStockSegments.mapKey(voucherId), svr);
+    }
+
+    /**
+     * redis中剩余的库存，分段时为各分段之和
+     */
+    public long remainingStock(long voucherId, int segments) {
+        if (segments <= 1) {
+            Object stock = stringRedisTemplate.opsForHash().get(SeckillStockSegments.mapKey(voucherId), "stock");
+            return stock == null ? 0 : Long.parseLong(stock.toString());
+        }
+        long total = 0;
+        for (int i = 0; i < segments; i++) {
+            Object stock = stringRedisTemplate.opsForHash().get(SeckillStockSegments.stockKey(voucherId, i), "stock");
+            total += stock == null ? 0 : Long.parseLong(stock.toString());
+        }
+        return total;
+    }
+
+    /**
+     * 写入订单stream的所有订单消息，分段时为各分段之和
+     */
+    public List<MapRecord<String, Object, Object>> orderMessages(long voucherId, int segments) {
+        List<String> streams = new ArrayList<>();
+        if (segments <= 1) {
+            streams.add(SeckillStockSegments.streamKey(voucherId));
+        }
+        for (int i = 0; segments > 1 && i < segments; i++) {
+            streams.add(SeckillStockSegments.streamKey(voucherId, i));
+        }
+        List<MapRecord<String, Object, Object>> messages = new ArrayList<>();
+        for (String stream : streams) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(stream, Range.unbounded());
+            if (records != null) {
+                messages.addAll(records);
+            }
+        }
+        return messages;
+    }
+
+    public void cleanUp(long voucherId, int segments) {
+        stringRedisTemplate.delete(SeckillStockSegments.mapKey(voucherId));
+        stringRedisTemplate.delete(SeckillStockSegments.orderKey(voucherId));
+        stringRedisTemplate.delete(SeckillStockSegments.orderIdKey(voucherId));
+        stringRedisTemplate.delete(SeckillStockSegments.streamKey(voucherId));
+        for (int i = 0; i < segments; i++) {
+            stringRedisTemplate.delete(SeckillStockSegments.stockKey(voucherId, i));
+            stringRedisTemplate.delete(SeckillStockSegments.orderKey(voucherId, i));
+            stringRedisTemplate.delete(SeckillStockSegments.orderIdKey(voucherId, i));
+            stringRedisTemplate.delete(SeckillStockSegments.reservedKey(voucherId, i));
+            stringRedisTemplate.delete(SeckillStockSegments.streamKey(voucherId, i));
+        }
+        stringRedisTemplate.delete(SECKILL_ORDER_STREAMS_KEY);
+        Set<String> statusKeys = stringRedisTemplate.keys(ORDER_STATUS_KEY + "*");
+        if (statusKeys != null && !statusKeys.isEmpty()) {
+            stringRedisTemplate.delete(statusKeys);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            listenerContainer.destroy();
+        } catch (Exception ignored) {
+            // 压测结束，忽略关闭异常
+        }
+        connectionFactory.destroy();
+    }
+}
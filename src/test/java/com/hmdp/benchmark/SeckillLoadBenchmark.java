@@ -0,0 +1,124 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.SeckillVoucherRedis;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.SeckillStockSegments;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对比秒杀资格校验的两种实现，需要本地redis，连接方式见SeckillBenchmarkSupport：
+ * <ul>
+ *     <li>legacy：HGETALL + mapToBean + Java比较时间 + 执行脚本，两次往返</li>
+ *     <li>singleScript：时间窗口校验合入secKill.lua，一次EVALSHA</li>
+ * </ul>
+ * 两个脚本直接加载执行，不经过秒杀服务；在IDE中直接运行main方法，或者传入JMH的命令行参数。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(64)
+public class SeckillLoadBenchmark {
+
+    private static final long VOUCHER_ID = 9_999_999L;
+    private static final List<String> KEYS = Arrays.asList(
+            SeckillStockSegments.mapKey(VOUCHER_ID), SeckillStockSegments.orderKey(VOUCHER_ID),
+            SeckillStockSegments.orderIdKey(VOUCHER_ID));
+
+    private static final DefaultRedisScript<Long> LEGACY_SCRIPT = new DefaultRedisScript<>(
+            "local stockKey = KEYS[1]\n" +
+            "local orderKey = KEYS[2]\n" +
+            "if (tonumber(redis.call('hget', stockKey, 'stock')) <= 0) then return 1 end\n" +
+            "if (redis.call('sismember', orderKey, ARGV[2]) == 1) then return 2 end\n" +
+            "redis.call('hincrby', stockKey, 'stock', -1)\n" +
+            "redis.call('sadd', orderKey, ARGV[2])\n" +
+            "return 0", Long.class);
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT = new DefaultRedisScript<>();
+    static {
+        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("secKill.lua"));
+    }
+
+    private final AtomicLong userIds = new AtomicLong();
+
+    private SeckillBenchmarkSupport support;
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        support = new SeckillBenchmarkSupport();
+        stringRedisTemplate = support.getStringRedisTemplate();
+        support.cleanUp(VOUCHER_ID, 1);
+        LocalDateTime begin = LocalDateTime.now().minusHours(1);
+        LocalDateTime end = LocalDateTime.now().plusHours(1);
+        Map<String, String> svr = new HashMap<>();
+        svr.put("stock", String.valueOf(Integer.MAX_VALUE));
+        svr.put("beginTime", begin.toString());
+        svr.put("endTime", end.toString());
+        svr.put("beginMillis", String.valueOf(CacheSerializer.toEpochMilli(begin)));
+        svr.put("endMillis", String.valueOf(CacheSerializer.toEpochMilli(end)));
+        stringRedisTemplate.opsForHash().putAll(KEYS.get(0), svr);
+    }
+
+    /**
+     * 每轮结束清掉已购用户集合，避免redis内存一直增长
+     */
+    @TearDown(Level.Iteration)
+    public void resetOrders() {
+        stringRedisTemplate.delete(KEYS.subList(1, KEYS.size()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        support.cleanUp(VOUCHER_ID, 1);
+        support.close();
+    }
+
+    @Benchmark
+    public Long legacy() {
+        Map<Object, Object> seckillMap = stringRedisTemplate.opsForHash().entries(KEYS.get(0));
+        SeckillVoucherRedis svr = BeanUtil.mapToBean(seckillMap, SeckillVoucherRedis.class, false);
+        if (svr.getBeginTime().isAfter(LocalDateTime.now()) || svr.getEndTime().isBefore(LocalDateTime.now())) {
+            throw new IllegalStateException("秒杀时间窗口错误");
+        }
+        return stringRedisTemplate.execute(LEGACY_SCRIPT, KEYS,
+                String.valueOf(VOUCHER_ID), String.valueOf(userIds.incrementAndGet()));
+    }
+
+    @Benchmark
+    public Long singleScript() {
+        String userId = String.valueOf(userIds.incrementAndGet());
+        return stringRedisTemplate.execute(SECKILL_SCRIPT, KEYS,
+                String.valueOf(VOUCHER_ID), userId, String.valueOf(System.currentTimeMillis()), userId);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SeckillLoadBenchmark.class.getSimpleName())
+                .jvmArgsAppend(System.getProperties().entrySet().stream()
+                        .filter(e -> e.getKey().toString().startsWith("bench."))
+                        .map(e -> "-D" + e.getKey() + "=" + e.getValue())
+                        .toArray(String[]::new))
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,144 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.impl.SeckillVoucherServiceImpl;
+import com.hmdp.utils.SeckillStockSegments;
+import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多线程秒杀场景：一批用户并发抢同一张券，每个用户可以重复点击多次，结束后输出
+ * 吞吐量、延迟分位数、超卖数量和重复下单数量。超卖或重复下单时以非0状态码退出。
+ * <p>
+ * 参数通过系统属性传入：
+ * <ul>
+ *     <li>bench.stock：库存，默认100</li>
+ *     <li>bench.users：用户数，默认1000</li>
+ *     <li>bench.attempts：每个用户的请求次数，默认3</li>
+ *     <li>bench.concurrency：并发线程数，默认64</li>
+ *     <li>bench.segments：库存分段数，默认1即不分段</li>
+ *     <li>bench.admission：是否开启准入控制，默认false</li>
+ * </ul>
+ * redis连接方式见SeckillBenchmarkSupport，在IDE中直接运行main方法即可。
+ */
+public class SeckillScenarioDriver {
+
+    private static final long VOUCHER_ID = 900002L;
+
+    public static void main(String[] args) throws Exception {
+        int stock = Integer.getInteger("bench.stock", 100);
+        int users = Integer.getInteger("bench.users", 1000);
+        int attempts = Integer.getInteger("bench.attempts", 3);
+        int concurrency = Integer.getInteger("bench.concurrency", 64);
+        int segments = Integer.getInteger("bench.segments", 1);
+        boolean admission = Boolean.getBoolean("bench.admission");
+
+        try (SeckillBenchmarkSupport support = new SeckillBenchmarkSupport()) {
+            SeckillVoucherServiceImpl service = support.newSeckillService(admission);
+            SeckillStockSegments stockSegments = (SeckillStockSegments) ReflectionTestUtils.getField(service, "seckillStockSegments");
+            support.createVoucher(VOUCHER_ID, stock, segments, stockSegments);
+            boolean ok = run(support, service, stock, users, attempts, concurrency, segments);
+            support.cleanUp(VOUCHER_ID, segments);
+            if (!ok) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static boolean run(SeckillBenchmarkSupport support, SeckillVoucherServiceImpl service,
+                               int stock, int users, int attempts, int concurrency, int segments) throws InterruptedException {
+        // 每个用户的多次点击打散后交给线程池，模拟重复提交
+        List<Long> requests = new ArrayList<>(users * attempts);
+        for (long userId = 1; userId <= users; userId++) {
+            for (int i = 0; i < attempts; i++) {
+                requests.add(userId);
+            }
+        }
+        Collections.shuffle(requests);
+
+        long[] latencies = new long[requests.size()];
+        Map<Long, AtomicInteger> successByUser = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            int index = i;
+            Long userId = requests.get(i);
+            pool.execute(() -> {
+                try {
+                    start.await();
+                    UserDTO user = new UserDTO();
+                    user.setId(userId);
+                    UserHolder.saveUser(user);
+                    long begin = System.nanoTime();
+                    Result result;
+                    try {
+                        result = service.secKillByVoucherId(VOUCHER_ID);
+                    } catch (RuntimeException e) {
+                        result = Result.fail(e.getClass().getSimpleName());
+                    }
+                    latencies[index] = System.nanoTime() - begin;
+                    if (Boolean.TRUE.equals(result.getSuccess())) {
+                        successByUser.computeIfAbsent(userId, id -> new AtomicInteger()).incrementAndGet();
+                    } else {
+                        failures.computeIfAbsent(result.getErrorMsg(), m -> new AtomicInteger()).incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    UserHolder.removeUser();
+                    done.countDown();
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+
+        int successes = 0;
+        int duplicateUsers = 0;
+        for (AtomicInteger count : successByUser.values()) {
+            successes += count.get();
+            if (count.get() > 1) {
+                duplicateUsers++;
+            }
+        }
+        // 以stream中实际投递的订单为准再校验一遍，防止返回结果和redis中的状态不一致
+        List<MapRecord<String, Object, Object>> orders = support.orderMessages(VOUCHER_ID, segments);
+        int streamOrders = orders.size();
+        Set<Object> streamUsers = new HashSet<>();
+        for (MapRecord<String, Object, Object> order : orders) {
+            streamUsers.add(order.getValue().get("userId"));
+        }
+        long remaining = support.remainingStock(VOUCHER_ID, segments);
+        int oversell = Math.max(0, Math.max(successes, streamOrders) - stock);
+        int duplicates = Math.max(duplicateUsers, streamOrders - streamUsers.size());
+
+        Arrays.sort(latencies);
+        System.out.printf("stock=%d users=%d attempts=%d concurrency=%d segments=%d%n",
+                stock, users, attempts, concurrency, segments);
+        System.out.printf("requests=%d elapsed=%.1fms throughput=%.0f req/s%n",
+                latencies.length, elapsed / 1e6, latencies.length / (elapsed / 1e9));
+        System.out.printf("latency p50=%.2fms p90=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+        System.out.printf("successes=%d streamOrders=%d remainingStock=%d failures=%s%n",
+                successes, streamOrders, remaining, failures);
+        System.out.printf("oversell=%d duplicates=%d%n", oversell, duplicates);
+        return oversell == 0 && duplicates == 0 && remaining >= 0 && stock - remaining == successes;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,140 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.impl.SeckillVoucherServiceImpl;
+import com.hmdp.utils.SeckillAdmissionControl;
+import com.hmdp.utils.SeckillStockSegments;
+import com.hmdp.utils.UserHolder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀热路径的JMH微基准，需要本地redis，连接方式见SeckillBenchmarkSupport。
+ * 库存足够大，每次调用使用新的用户id，测的是下单成功路径的开销：
+ * <ul>
+ *     <li>luaScript：secKill.lua一次往返完成校验和扣减</li>
+ *     <li>checkThenAct：拆成多条命令分别执行，作为对照（并发下会超卖）</li>
+ *     <li>secKillByVoucherId：完整的秒杀服务，订单写入redis stream</li>
+ *     <li>tryAdmit：进程内准入控制的开销</li>
+ * </ul>
+ * 在IDE中直接运行main方法，或者传入JMH的命令行参数。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(16)
+public class SeckillScriptBenchmark {
+
+    private static final long VOUCHER_ID = 900001L;
+    private static final int STOCK = 100_000_000;
+
+    private final AtomicLong userIds = new AtomicLong();
+
+    private SeckillBenchmarkSupport support;
+    private StringRedisTemplate stringRedisTemplate;
+    private SeckillVoucherServiceImpl seckillVoucherService;
+    private SeckillAdmissionControl admissionControl;
+    private DefaultRedisScript<Long> seckillScript;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        support = new SeckillBenchmarkSupport();
+        stringRedisTemplate = support.getStringRedisTemplate();
+        seckillVoucherService = support.newSeckillService(false);
+        admissionControl = support.newAdmissionControl(true);
+        seckillScript = new DefaultRedisScript<>();
+        seckillScript.setResultType(Long.class);
+        seckillScript.setLocation(new ClassPathResource("secKill.lua"));
+        support.createVoucher(VOUCHER_ID, STOCK, 1, null);
+    }
+
+    /**
+     * 每轮结束清掉已购用户集合和订单stream，避免redis内存一直增长
+     */
+    @TearDown(Level.Iteration)
+    public void resetOrders() {
+        stringRedisTemplate.delete(SeckillStockSegments.orderKey(VOUCHER_ID));
+        stringRedisTemplate.delete(SeckillStockSegments.orderIdKey(VOUCHER_ID));
+        stringRedisTemplate.delete(SeckillStockSegments.streamKey(VOUCHER_ID));
+        stringRedisTemplate.opsForHash().put(SeckillStockSegments.mapKey(VOUCHER_ID), "stock", String.valueOf(STOCK));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        support.cleanUp(VOUCHER_ID, 1);
+        support.close();
+    }
+
+    @Benchmark
+    public Long luaScript() {
+        String userId = String.valueOf(userIds.incrementAndGet());
+        return stringRedisTemplate.execute(seckillScript,
+                Arrays.asList(SeckillStockSegments.mapKey(VOUCHER_ID), SeckillStockSegments.orderKey(VOUCHER_ID),
+                        SeckillStockSegments.orderIdKey(VOUCHER_ID)),
+                String.valueOf(VOUCHER_ID), userId, String.valueOf(System.currentTimeMillis()), userId);
+    }
+
+    @Benchmark
+    public Long checkThenAct() {
+        String stockKey = SeckillStockSegments.mapKey(VOUCHER_ID);
+        String orderKey = SeckillStockSegments.orderKey(VOUCHER_ID);
+        String userId = String.valueOf(userIds.incrementAndGet());
+        List<Object> info = stringRedisTemplate.opsForHash().multiGet(stockKey, Arrays.asList("stock", "beginMillis", "endMillis"));
+        long now = System.currentTimeMillis();
+        if (info.get(0) == null || now < Long.parseLong(info.get(1).toString()) || now > Long.parseLong(info.get(2).toString())) {
+            return 5L;
+        }
+        if (Long.parseLong(info.get(0).toString()) <= 0) {
+            return 1L;
+        }
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(orderKey, userId))) {
+            return 2L;
+        }
+        stringRedisTemplate.opsForHash().increment(stockKey, "stock", -1);
+        stringRedisTemplate.opsForSet().add(orderKey, userId);
+        return 0L;
+    }
+
+    @Benchmark
+    public Result secKillByVoucherId() {
+        UserDTO user = new UserDTO();
+        user.setId(userIds.incrementAndGet());
+        UserHolder.saveUser(user);
+        try {
+            return seckillVoucherService.secKillByVoucherId(VOUCHER_ID);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    @Benchmark
+    public SeckillAdmissionControl.Decision tryAdmit() {
+        return admissionControl.tryAdmit(userIds.incrementAndGet(), VOUCHER_ID);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SeckillScriptBenchmark.class.getSimpleName())
+                .jvmArgsAppend(System.getProperties().entrySet().stream()
+                        .filter(e -> e.getKey().toString().startsWith("bench."))
+                        .map(e -> "-D" + e.getKey() + "=" + e.getValue())
+                        .toArray(String[]::new))
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,86 @@
+package com.hmdp.benchmark;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIDGenerator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 对比逐条创建订单和批量创建订单的吞吐量，需要本地mysql和redis。
+ * 类名不符合surefire的测试类命名，mvn test不会执行，需要时单独运行：mvn test -Dtest=VoucherOrderBatchBenchmark
+ */
+@SpringBootTest
+class VoucherOrderBatchBenchmark {
+
+    private static final long VOUCHER_ID = 9_999_998L;
+    private static final int ORDERS = 5000;
+    private static final int BATCH_SIZE = 200;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private RedisIDGenerator redisIDGenerator;
+
+    private long nextUserId = 1;
+
+    @BeforeEach
+    public void setUp() {
+        SeckillVoucher seckillVoucher = new SeckillVoucher();
+        seckillVoucher.setVoucherId(VOUCHER_ID);
+        seckillVoucher.setStock(ORDERS * 2);
+        seckillVoucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        seckillVoucher.setEndTime(LocalDateTime.now().plusHours(1));
+        seckillVoucherService.save(seckillVoucher);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", VOUCHER_ID));
+        seckillVoucherService.removeById(VOUCHER_ID);
+    }
+
+    @Test
+    public void compareSingleAndBatch() {
+        List<VoucherOrder> single = newOrders(ORDERS);
+        long begin = System.currentTimeMillis();
+        for (VoucherOrder voucherOrder : single) {
+            voucherOrderService.createVoucherOrder(voucherOrder);
+        }
+        long singleCost = System.currentTimeMillis() - begin;
+
+        List<VoucherOrder> batch = newOrders(ORDERS);
+        begin = System.currentTimeMillis();
+        for (int i = 0; i < batch.size(); i += BATCH_SIZE) {
+            voucherOrderService.createVoucherOrders(batch.subList(i, Math.min(i + BATCH_SIZE, batch.size())));
+        }
+        long batchCost = System.currentTimeMillis() - begin;
+
+        System.out.println("逐条：" + ORDERS * 1000L / Math.max(1, singleCost) + " 单/秒，耗时：" + singleCost);
+        System.out.println("批量(" + BATCH_SIZE + ")：" + ORDERS * 1000L / Math.max(1, batchCost) + " 单/秒，耗时：" + batchCost);
+    }
+
+    private List<VoucherOrder> newOrders(int n) {
+        List<VoucherOrder> orders = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(redisIDGenerator.nextId("order"));
+            voucherOrder.setUserId(nextUserId++);
+            voucherOrder.setVoucherId(VOUCHER_ID);
+            orders.add(voucherOrder);
+        }
+        return orders;
+    }
+}
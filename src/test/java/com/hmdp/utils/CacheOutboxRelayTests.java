@@ -0,0 +1,140 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.MybatisConfiguration;
+import com.baomidou.mybatisplus.core.MybatisSqlSessionFactoryBuilder;
+import com.hmdp.mapper.CacheOutboxMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.h2.api.Trigger;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 缓存失效发件箱的投递，用H2代替mysql，ShopOutboxTrigger模拟hmdp.sql中tb_shop上的触发器；
+ * 插入和修改店铺后投递，缓存被删除、id加入布隆过滤器、发件箱记录被删除。不需要mysql和redis
+ */
+class CacheOutboxRelayTests {
+
+    private JdbcDataSource dataSource;
+    private CacheOutboxMapper cacheOutboxMapper;
+    private CacheUtil cacheUtil;
+    private BloomFilterManager bloomFilterManager;
+    private CacheOutboxRelay relay;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:outbox;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        String trigger = " FOR EACH ROW CALL \"" + ShopOutboxTrigger.class.getName() + "\"";
+        execute("DROP ALL OBJECTS",
+                "CREATE TABLE tb_shop (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(128))",
+                "CREATE TABLE tb_cache_outbox (id BIGINT AUTO_INCREMENT PRIMARY KEY, cache_key VARCHAR(255) NOT NULL," +
+                        " create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
+                "CREATE TRIGGER trg_shop_insert_outbox AFTER INSERT ON tb_shop" + trigger,
+                "CREATE TRIGGER trg_shop_update_outbox AFTER UPDATE ON tb_shop" + trigger);
+
+        MybatisConfiguration configuration = new MybatisConfiguration();
+        configuration.setEnvironment(new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(CacheOutboxMapper.class);
+        SqlSessionFactory sqlSessionFactory = new MybatisSqlSessionFactoryBuilder().build(configuration);
+        cacheOutboxMapper = new SqlSessionTemplate(sqlSessionFactory).getMapper(CacheOutboxMapper.class);
+
+        cacheUtil = mock(CacheUtil.class);
+        bloomFilterManager = mock(BloomFilterManager.class);
+        RedisDistributedLock lock = mock(RedisDistributedLock.class);
+        when(lock.tryLock(anyLong())).thenReturn(true);
+        RedisLockFactory redisLockFactory = mock(RedisLockFactory.class);
+        when(redisLockFactory.createLock(anyString())).thenReturn(lock);
+
+        relay = new CacheOutboxRelay();
+        ReflectionTestUtils.setField(relay, "cacheOutboxMapper", cacheOutboxMapper);
+        ReflectionTestUtils.setField(relay, "cacheUtil", cacheUtil);
+        ReflectionTestUtils.setField(relay, "bloomFilterManager", bloomFilterManager);
+        ReflectionTestUtils.setField(relay, "redisLockFactory", redisLockFactory);
+        ReflectionTestUtils.setField(relay, "meterRegistry", new SimpleMeterRegistry());
+        // 每批2条，3条记录需要两批
+        ReflectionTestUtils.setField(relay, "batchSize", 2);
+        ReflectionTestUtils.setField(relay, "doubleDeleteMillis", 0L);
+        ReflectionTestUtils.setField(relay, "lockSeconds", 30L);
+        relay.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        relay.destroy();
+    }
+
+    @Test
+    public void relaysRowsWrittenByTriggers() throws Exception {
+        execute("INSERT INTO tb_shop (id, name) VALUES (1, 'a')",
+                "INSERT INTO tb_shop (id, name) VALUES (2, 'b')",
+                "UPDATE tb_shop SET name = 'c' WHERE id = 1");
+        assertEquals(3, (int) cacheOutboxMapper.selectCount(null));
+
+        relay.poll();
+
+        verify(cacheUtil, timeout(5000).atLeastOnce()).evict(CACHE_SHOP_KEY + 1);
+        verify(cacheUtil, timeout(5000).atLeastOnce()).evict(CACHE_SHOP_KEY + 2);
+        // 直接插入数据库的店铺也要能通过布隆过滤器
+        verify(bloomFilterManager, timeout(5000).atLeastOnce()).putKey(CACHE_SHOP_KEY + 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cacheOutboxMapper.selectCount(null) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, (int) cacheOutboxMapper.selectCount(null));
+    }
+
+    private void execute(String... sqls) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            for (String sql : sqls) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * 对应hmdp.sql中的trg_shop_insert_outbox和trg_shop_update_outbox，H2的触发器只能用java实现
+     */
+    public static class ShopOutboxTrigger implements Trigger {
+
+        @Override
+        public void init(Connection conn, String schemaName, String triggerName, String tableName, boolean before, int type) {
+        }
+
+        @Override
+        public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+            try (PreparedStatement statement = conn.prepareStatement("INSERT INTO tb_cache_outbox (cache_key) VALUES (?)")) {
+                statement.setString(1, CACHE_SHOP_KEY + newRow[0]);
+                statement.executeUpdate();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void remove() {
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_MAX_TTL;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 模拟一批同时预热的店铺缓存在4小时内的重建次数（即打到数据库的查询），
+ * AdaptiveExpirePolicy下每分钟数据库负载的峰值应远低于固定30分钟TTL
+ */
+class ExpirePolicySimulationTests {
+
+    private static final int KEYS = 10000;
+    private static final int MINUTES = 240;
+
+    @Test
+    public void policySpreadsReloadPeak() {
+        long baseTtl = TimeUnit.MINUTES.toMillis(CACHE_SHOP_TTL);
+        int fixedPeak = max(simulate(null, baseTtl));
+        int jitteredPeak = max(simulate(newPolicy(), baseTtl));
+        // 固定TTL下所有key在同一分钟过期
+        assertEquals(KEYS, fixedPeak);
+        assertTrue(jitteredPeak * 5 < fixedPeak, "policy峰值：" + jitteredPeak + "，fixed峰值：" + fixedPeak);
+    }
+
+    private AdaptiveExpirePolicy newPolicy() {
+        AdaptiveExpirePolicy policy = new AdaptiveExpirePolicy();
+        ReflectionTestUtils.setField(policy, "jitterRatio", 0.1);
+        ReflectionTestUtils.setField(policy, "maxBoost", 1.0);
+        ReflectionTestUtils.setField(policy, "stableSeconds", 600L);
+        ReflectionTestUtils.setField(policy, "trackedKeys", (long) KEYS);
+        policy.init();
+        policy.registerTier(CACHE_SHOP_KEY, CACHE_SHOP_TTL, CACHE_SHOP_MAX_TTL, TimeUnit.MINUTES);
+        return policy;
+    }
+
+    /**
+     * 所有key在t=0时写入缓存，过期后立即被重新加载，返回每分钟的加载次数
+     */
+    private int[] simulate(ExpirePolicy policy, long baseTtl) {
+        int[] reloads = new int[MINUTES];
+        // [过期时间, key编号]
+        PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        for (int i = 0; i < KEYS; i++) {
+            queue.add(new long[]{ttl(policy, i, baseTtl), i});
+        }
+        long end = TimeUnit.MINUTES.toMillis(MINUTES);
+        while (!queue.isEmpty() && queue.peek()[0] < end) {
+            long[] entry = queue.poll();
+            reloads[(int) TimeUnit.MILLISECONDS.toMinutes(entry[0])]++;
+            queue.add(new long[]{entry[0] + ttl(policy, (int) entry[1], baseTtl), entry[1]});
+        }
+        return reloads;
+    }
+
+    private long ttl(ExpirePolicy policy, int i, long baseTtl) {
+        if (policy == null) {
+            return baseTtl;
+        }
+        String key = CACHE_SHOP_KEY + i;
+        // 一部分key是热点，每个缓存周期被大量读取
+        int reads = i % 10 == 0 ? 1000 : 10;
+        for (int j = 0; j < reads; j++) {
+            policy.recordRead(key);
+        }
+        return policy.ttlMillis(key, baseTtl);
+    }
+
+    private int max(int[] values) {
+        int max = 0;
+        for (int v : values) {
+            max = Math.max(max, v);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 雪花id的唯一性、时钟回拨和租约过期处理，租约使用内存中的redis替身，不需要redis；发号吞吐量见RedisIDGeneratorBenchmark
+ */
+class SnowflakeIDGeneratorTests {
+
+    private static final int THREADS = 16;
+    private static final int IDS_PER_THREAD = 200000;
+
+    private SnowflakeIDGenerator generator;
+
+    @BeforeEach
+    public void setUp() {
+        generator = new SnowflakeIDGenerator();
+        ReflectionTestUtils.setField(generator, "prefixes", new String[]{"order"});
+        ReflectionTestUtils.setField(generator, "fixedWorkerId", 7L);
+        generator.init();
+    }
+
+    @Test
+    public void uniqueAcrossThreads() throws InterruptedException {
+        long[][] ids = new long[THREADS][IDS_PER_THREAD];
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            long[] out = ids[t];
+            pool.execute(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < IDS_PER_THREAD; i++) {
+                        out[i] = generator.nextId();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        long[] all = new long[THREADS * IDS_PER_THREAD];
+        for (int t = 0; t < THREADS; t++) {
+            // 同一个线程拿到的id严格递增
+            for (int i = 1; i < IDS_PER_THREAD; i++) {
+                assertTrue(ids[t][i] > ids[t][i - 1]);
+            }
+            System.arraycopy(ids[t], 0, all, t * IDS_PER_THREAD, IDS_PER_THREAD);
+        }
+        Arrays.sort(all);
+        for (int i = 1; i < all.length; i++) {
+            assertTrue(all[i] != all[i - 1], "重复的id：" + all[i]);
+        }
+        // 第62位为1，与RedisIDGenerator生成的id区分开
+        assertTrue(all[0] >= 1L << 62);
+        assertEquals(7L, all[0] >>> 12 & 1023);
+    }
+
+    @Test
+    public void toleratesSmallClockRollback() {
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        ReflectionTestUtils.setField(generator, "clock", (LongSupplier) now::get);
+        long first = generator.nextId();
+        now.addAndGet(-500);
+        long second = generator.nextId();
+        assertTrue(second > first);
+        now.addAndGet(1000);
+        assertTrue(generator.nextId() > second);
+    }
+
+    @Test
+    public void rejectsLargeClockRollback() {
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        ReflectionTestUtils.setField(generator, "clock", (LongSupplier) now::get);
+        generator.nextId();
+        now.addAndGet(-5000);
+        assertThrows(IllegalStateException.class, generator::nextId);
+    }
+
+    @Test
+    public void failsClosedAfterLeaseLost() {
+        // ok：脚本返回1；down：redis不可用；lost：租约已被其他节点占用
+        AtomicReference<String> redis = new AtomicReference<>("ok");
+        StringRedisTemplate template = new StringRedisTemplate() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+                if ("down".equals(redis.get())) {
+                    throw new RedisConnectionFailureException("redis不可用");
+                }
+                boolean lost = "lost".equals(redis.get()) && "renew".equals(args[0]);
+                return (T) Long.valueOf(lost ? 0 : 1);
+            }
+        };
+        AtomicLong ticker = new AtomicLong();
+        SnowflakeIDGenerator leased = new SnowflakeIDGenerator();
+        ReflectionTestUtils.setField(leased, "prefixes", new String[]{"order"});
+        ReflectionTestUtils.setField(leased, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(leased, "ticker", (LongSupplier) ticker::get);
+        leased.init();
+        try {
+            leased.nextId();
+
+            // redis不可用，续约失败，租约有效期内继续发号
+            redis.set("down");
+            ticker.addAndGet(TimeUnit.SECONDS.toNanos(100));
+            ReflectionTestUtils.invokeMethod(leased, "renew");
+            leased.nextId();
+
+            // 超过租约时长（300秒减去余量）后拒绝发号
+            ticker.addAndGet(TimeUnit.SECONDS.toNanos(200));
+            ReflectionTestUtils.invokeMethod(leased, "renew");
+            assertThrows(IllegalStateException.class, leased::nextId);
+
+            // redis恢复后发现租约已丢失，重新租用后恢复发号
+            redis.set("lost");
+            ReflectionTestUtils.invokeMethod(leased, "renew");
+            leased.nextId();
+        } finally {
+            redis.set("ok");
+            leased.destroy();
+        }
+    }
+}